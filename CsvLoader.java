@@ -0,0 +1,237 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Streams numeric CSV columns straight into primitive double arrays.
+// Fields are parsed from a reusable char buffer, so no String or Double is created per value.
+public class CsvLoader {
+    private final int[] columns;
+    private final boolean[] wanted;
+    private final int fieldCount;
+
+    private double[][] data;
+    private int size;
+
+    // reused per row
+    private final double[] row;
+    private int field;
+    private int line;
+    private String error; // the first wanted field of the row that is not a number
+
+    // current field
+    private char[] token = new char[64];
+    private int tokenLength;
+
+    // columns   indices of the fields to keep
+    // fieldCount   rows with a different number of fields are skipped, 0 keeps every row
+    public CsvLoader(int[] columns, int fieldCount) {
+        this.columns = columns.clone();
+        this.fieldCount = fieldCount;
+
+        int maxColumn = 0;
+        for (int c : columns)
+            maxColumn = Math.max(maxColumn, c);
+
+        row = new double[maxColumn + 1];
+        wanted = new boolean[maxColumn + 1];
+        for (int c : columns)
+            wanted[c] = true;
+    }
+
+    // returns one array per requested column, trimmed to the number of rows read
+    // throws NumberFormatException if a wanted field of a row that is kept is not a number
+    public double[][] load(File file, boolean skipHeader) throws IOException {
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            return load(reader, skipHeader);
+        }
+    }
+
+    public double[][] load(Reader reader, boolean skipHeader) throws IOException {
+        data = new double[columns.length][1024];
+        size = 0;
+        line = 1;
+        startRow();
+
+        char[] buffer = new char[1 << 16];
+        boolean header = skipHeader;
+        int count;
+
+        while ((count = reader.read(buffer)) > 0) {
+            for (int i = 0; i < count; i++) {
+                char c = buffer[i];
+
+                if (header) {
+                    if (c == '\n') {
+                        header = false;
+                        line++;
+                    }
+                    continue;
+                }
+
+                if (c == ',') {
+                    endField();
+                }
+                else if (c == '\n') {
+                    endField();
+                    endRow();
+                }
+                else if (c != '\r') {
+                    if (tokenLength == token.length)
+                        token = Arrays.copyOf(token, 2 * tokenLength);
+                    token[tokenLength++] = c;
+                }
+            }
+        }
+
+        // last line without a line break
+        if (tokenLength > 0 || field > 0) {
+            endField();
+            endRow();
+        }
+
+        double[][] result = new double[columns.length][];
+        for (int k = 0; k < columns.length; k++)
+            result[k] = Arrays.copyOf(data[k], size);
+
+        data = null;
+        return result;
+    }
+
+    private void startRow() {
+        field = 0;
+        tokenLength = 0;
+        error = null;
+    }
+
+    private void endField() {
+        if (field < wanted.length && wanted[field]) {
+            try {
+                row[field] = parse(token, tokenLength);
+            } catch (NumberFormatException e) {
+                if (error == null)
+                    error = e.getMessage();
+            }
+        }
+
+        field++;
+        tokenLength = 0;
+    }
+
+    private void endRow() {
+        if ((fieldCount == 0 || field == fieldCount) && field >= row.length) {
+            if (error != null)
+                throw new NumberFormatException("line " + line + ": " + error);
+
+            if (size == data[0].length) {
+                for (int k = 0; k < columns.length; k++)
+                    data[k] = Arrays.copyOf(data[k], 2 * size);
+            }
+
+            for (int k = 0; k < columns.length; k++)
+                data[k][size] = row[columns[k]];
+
+            size++;
+        }
+
+        line++;
+        startRow();
+    }
+
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    // parses a decimal number, throws NumberFormatException if the field is not a number
+    // values with at most 15 significant digits and small exponents are exact without a String;
+    // anything else falls back to Double.parseDouble
+    static double parse(char[] s, int length) {
+        int start = 0;
+        int end = length;
+
+        while (start < end && (s[start] == ' ' || s[start] == '"'))
+            start++;
+        while (end > start && (s[end - 1] == ' ' || s[end - 1] == '"'))
+            end--;
+
+        if (start == end)
+            throw new NumberFormatException("empty String");
+
+        int i = start;
+        boolean negative = false;
+
+        if (s[i] == '-' || s[i] == '+') {
+            negative = s[i] == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean anyDigit = false;
+
+        for (; i < end && s[i] >= '0' && s[i] <= '9'; i++) {
+            anyDigit = true;
+            if (digits < 18) {
+                mantissa = 10 * mantissa + (s[i] - '0');
+                if (mantissa != 0)
+                    digits++;
+            }
+            else {
+                scale++;
+            }
+        }
+
+        if (i < end && s[i] == '.') {
+            for (i++; i < end && s[i] >= '0' && s[i] <= '9'; i++) {
+                anyDigit = true;
+                if (digits < 18) {
+                    mantissa = 10 * mantissa + (s[i] - '0');
+                    if (mantissa != 0)
+                        digits++;
+                    scale--;
+                }
+            }
+        }
+
+        if (i < end && (s[i] == 'e' || s[i] == 'E')) {
+            int j = i + 1;
+            boolean negativeExponent = false;
+
+            if (j < end && (s[j] == '-' || s[j] == '+')) {
+                negativeExponent = s[j] == '-';
+                j++;
+            }
+
+            int exponent = 0;
+            boolean anyExponentDigit = false;
+
+            for (; j < end && s[j] >= '0' && s[j] <= '9'; j++) {
+                anyExponentDigit = true;
+                if (exponent < 100000)
+                    exponent = 10 * exponent + (s[j] - '0');
+            }
+
+            if (!anyExponentDigit)
+                return slowParse(s, start, end);
+
+            scale += negativeExponent ? -exponent : exponent;
+            i = j;
+        }
+
+        if (!anyDigit || i != end)
+            return slowParse(s, start, end);
+
+        if (digits > 15 || scale < -22 || scale > 22)
+            return slowParse(s, start, end);
+
+        double value = mantissa;
+        value = scale < 0 ? value / POWERS_OF_TEN[-scale] : value * POWERS_OF_TEN[scale];
+
+        return negative ? -value : value;
+    }
+
+    private static double slowParse(char[] s, int start, int end) {
+        return Double.parseDouble(new String(s, start, end - start));
+    }
+}
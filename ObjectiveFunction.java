@@ -1,6 +1,7 @@
-import org.opensourcephysics.numerics.MultiVarFunction;
+import org.opensourcephysics.numerics.DifferentiableLeastSquaresFunction;
+import org.opensourcephysics.numerics.LinearLeastSquaresFunction;
 
-public class ObjectiveFunction implements MultiVarFunction {
+public class ObjectiveFunction implements DifferentiableLeastSquaresFunction, LinearLeastSquaresFunction {
     private double[] x1;
     private double[] T;
     private double[] G;
@@ -8,6 +9,15 @@ public class ObjectiveFunction implements MultiVarFunction {
     private int length;
     private int n;
 
+    // per point invariants that do not depend on the parameters
+    // ideal[i] = 8.314 * T * (x ln x + (1 - x) ln(1 - x))
+    // basis[k][i] = x (1 - x) (2x - 1)^k
+    private double[] ideal;
+    private double[][] basis;
+
+    // square roots of the per point weights, null for an unweighted fit
+    private double[] sqrtWeights;
+
     public ObjectiveFunction(double[] x1, double[] T, double[] G, int n) {
         if(x1.length != T.length && x1.length != G.length)
             throw new IllegalArgumentException("ObjectiveFunction requires array of equal length.", null);
@@ -18,6 +28,63 @@ public class ObjectiveFunction implements MultiVarFunction {
         
         length = x1.length;
         this.n = n;
+
+        ideal = new double[length];
+        basis = new double[n + 1][length];
+
+        for (int i = 0; i < length; i++) {
+            double x = x1[i];
+
+            if (x == 0.0) {
+                ideal[i] = 8.314 * T[i] * (1 - x) * Math.log(1 - x);
+            }
+            else if (x == 1.0) {
+                ideal[i] = 8.314 * T[i] * x * Math.log(x);
+            }
+            else {
+                ideal[i] = 8.314 * T[i] * (x * Math.log(x) + (1 - x) * Math.log(1 - x));
+            }
+
+            double term = x * (1 - x);
+
+            for (int k = 0; k <= n; k++) {
+                basis[k][i] = term;
+                term *= 2 * x - 1;
+            }
+        }
+    }
+
+    // weights w_i multiply the squared residuals, for example 1 / sigma_i^2 from measurement errors
+    // null restores the unweighted sum of squares
+    public void setWeights(double[] weights) {
+        if (weights == null) {
+            sqrtWeights = null;
+            return;
+        }
+
+        if (weights.length != length)
+            throw new IllegalArgumentException("ObjectiveFunction requires one weight per point.", null);
+
+        sqrtWeights = new double[length];
+        for (int i = 0; i < length; i++) {
+            sqrtWeights[i] = Math.sqrt(weights[i]);
+        }
+    }
+
+    private double weight(int i) {
+        return sqrtWeights == null ? 1.0 : sqrtWeights[i];
+    }
+
+    // G_i minus the Redlich-Kister model at point i, times the square root of its weight
+    private double residual(double[] parameters, int i) {
+        double t = T[i];
+        double model = ideal[i];
+
+        for (int k = 0; k <= n; k++) {
+            model += (parameters[2 * k] + parameters[2 * k + 1] * t) * basis[k][i];
+        }
+
+        return weight(i) * (G[i] - model);
     }
     
     public double evaluate(double[] parameters) {
@@ -25,13 +92,72 @@ public class ObjectiveFunction implements MultiVarFunction {
         double result = 0;
 
         for (int i = 0; i < length; i++) {
-            // function goes here
-           	double tempG = new RegressionFunction(parameters, n, T[i]).evaluate(x1[i]);
-
             // get residual squared and add to sum
-            result += Math.pow(G[i] - tempG, 2);
+            double r = residual(parameters, i);
+            result += r * r;
         }
 
         return result;
     }
+
+    public int getResidualCount() {
+        return length;
+    }
+
+    public double[] evaluate(double[] parameters, double[] result) {
+        // residual_i = sqrt(w_i) * (G_i - model_i)
+        if (result == null)
+            result = new double[length];
+
+        for (int i = 0; i < length; i++) {
+            result[i] = residual(parameters, i);
+        }
+
+        return result;
+    }
+
+    public double[][] jacobian(double[] parameters, double[][] jac) {
+        // the model is linear in the parameters:
+        // d(residual_i)/dL_k = -x(1-x)(2x-1)^k and d(residual_i)/dL_kT = -x(1-x)(2x-1)^k * T
+        if (jac == null)
+            jac = new double[length][parameters.length];
+
+        for (int i = 0; i < length; i++) {
+            double w = weight(i);
+
+            for (int k = 0; k <= n; k++) {
+                jac[i][2 * k] = -w * basis[k][i];
+                jac[i][2 * k + 1] = -w * basis[k][i] * T[i];
+            }
+        }
+
+        return jac;
+    }
+
+    public double[][] getDesignMatrix() {
+        // the model is linear in the parameters: G_i = ideal_i + sum_k (L_k + L_kT * T_i) * basis_k(x_i)
+        double[][] design = new double[length][2 * (n + 1)];
+
+        for (int i = 0; i < length; i++) {
+            double w = weight(i);
+
+            for (int k = 0; k <= n; k++) {
+                design[i][2 * k] = w * basis[k][i];
+                design[i][2 * k + 1] = w * basis[k][i] * T[i];
+            }
+        }
+
+        return design;
+    }
+
+    public double[] getObservations() {
+        // excess Gibbs energy left after removing the ideal mixing term
+        double[] observations = new double[length];
+
+        for (int i = 0; i < length; i++) {
+            observations[i] = weight(i) * (G[i] - ideal[i]);
+        }
+
+        return observations;
+    }
 }
\ No newline at end of file
@@ -1,6 +1,5 @@
 import java.io.*;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Random;
 import java.util.Scanner;
 import java.util.HashMap;
@@ -13,10 +12,6 @@ import org.opensourcephysics.display.FunctionDrawer;
 import org.opensourcephysics.display.PlottingPanel;
 
 public class Optimizer {
-    public static double[] convertDouble(List<Double> list) {
-        return list.stream().mapToDouble(i -> i).toArray();
-    }
-
     public static Color generateColor() {
         Random random = new Random();
         final float hue = random.nextFloat();
@@ -45,96 +40,94 @@ public class Optimizer {
         return n;
     }
 
-    public static void printData(double[] parameters, int n) {
-        System.out.println("L0:\t" + parameters[0]);
-        System.out.println("L0T:\t" + parameters[1]);
+    public static void printData(double[] parameters, double[] errors, int n) {
+        System.out.println("L0:\t" + parameters[0] + "\t+/- " + errors[0]);
+        System.out.println("L0T:\t" + parameters[1] + "\t+/- " + errors[1]);
 
         if (n >= 1) {
-            System.out.println("L1:\t" + parameters[2]);
-            System.out.println("L1T:\t" + parameters[3]);
+            System.out.println("L1:\t" + parameters[2] + "\t+/- " + errors[2]);
+            System.out.println("L1T:\t" + parameters[3] + "\t+/- " + errors[3]);
         }
 
         if (n >= 2) {
-            System.out.println("L2:\t" + parameters[4]);
-            System.out.println("L2T:\t" + parameters[5]);
+            System.out.println("L2:\t" + parameters[4] + "\t+/- " + errors[4]);
+            System.out.println("L2T:\t" + parameters[5] + "\t+/- " + errors[5]);
         }
 
         if (n == 3) {
-            System.out.println("L3:\t" + parameters[6]);
-            System.out.println("L3T:\t" + parameters[7]);
+            System.out.println("L3:\t" + parameters[6] + "\t+/- " + errors[6]);
+            System.out.println("L3T:\t" + parameters[7] + "\t+/- " + errors[7]);
         }
     }
 
-    public static void main(String[] args) throws FileNotFoundException {
-        ArrayList<Double> T = new ArrayList<Double>();
-        ArrayList<Double> x = new ArrayList<Double>();
-        ArrayList<Double> G = new ArrayList<Double>();
-
+    public static void main(String[] args) throws IOException {
         HashMap<Double, Dataset> map = new HashMap<Double, Dataset>();
 
         // read csv file
-        // add data to arraylists
-        try (Scanner sc = new Scanner(new File("cusiLIq.csv"))) {
+        // stream columns 0, 2 and 3 of the 4 column rows into primitive arrays, ignoring the first line
+        double[][] columns = new CsvLoader(new int[] {0, 2, 3}, 4).load(new File("cusiLIq.csv"), true);
 
-            // ignore first line
-            sc.nextLine();
+        double[] T = columns[0];
+        double[] x = columns[1];
+        double[] G = columns[2];
 
-            while (sc.hasNextLine()) {
-                String[] values = sc.nextLine().split(",");
+        for (int i = 0; i < T.length; i++) {
+            T[i] += 273.15;
+            x[i] /= 100.0;
+        }
 
-                if (values.length == 4) {
-                    T.add(Double.parseDouble(values[0]) + 273.15);
-                    x.add(Double.parseDouble(values[2]) / 100.0);
-                    G.add(Double.parseDouble(values[3]));
-                }
-            }
+        // type of solution
+        // 0 <= n <= 3
+        int n = getUserResponse();
+
+        // begin optimization
+        LevenbergMarquardt optimizer = new LevenbergMarquardt();
+        ObjectiveFunction function = new ObjectiveFunction(x, T, G, n);
+        
+        double[] parameters = new double[2 * (n + 1)];
+        optimizer.minimize(function, parameters, 10000, 1e-20);
+
+        // standard errors from the curvature of the final fit
+        double[] errors = optimizer.getStandardErrors();
+        if (errors == null) {
+            errors = new double[parameters.length];
+            Arrays.fill(errors, Double.NaN);
+        }
 
-            // type of solution
-            // 0 <= n <= 3
-            int n = getUserResponse();
-
-            // begin optimization
-            LevenbergMarquardt optimizer = new LevenbergMarquardt();
-            ObjectiveFunction function = new ObjectiveFunction(convertDouble(x), convertDouble(T), convertDouble(G), n);
-            
-            double[] parameters = new double[2 * (n + 1)];
-            optimizer.minimize(function, parameters, 10000, 1e-20);
-
-            System.out.println(optimizer.getIterations());
-            printData(parameters, n);
-
-            // initialize hashmap
-            for (int i = 0; i < x.size(); i++) {
-                Dataset dataset = map.get(T.get(i));
-                if (dataset == null) {
-                    dataset = new Dataset();
-                    dataset.setName(T.get(i).toString());
-                    dataset.setMarkerColor(generateColor());
-                    dataset.setSorted(true);
-                    dataset.setMarkerSize(1);
-                    dataset.setMarkerShape(2);
-
-                    map.put(T.get(i), dataset);
-                }
-
-                dataset.append(x.get(i), G.get(i));
+        System.out.println(optimizer.getIterations());
+        printData(parameters, errors, n);
+
+        // initialize hashmap
+        for (int i = 0; i < x.length; i++) {
+            Dataset dataset = map.get(T[i]);
+            if (dataset == null) {
+                dataset = new Dataset();
+                dataset.setName(Double.toString(T[i]));
+                dataset.setMarkerColor(generateColor());
+                dataset.setSorted(true);
+                dataset.setMarkerSize(1);
+                dataset.setMarkerShape(2);
+
+                map.put(T[i], dataset);
             }
 
-            PlottingPanel panel = new PlottingPanel("x","y","Test");
-            DrawingFrame frame = new DrawingFrame(panel);
+            dataset.append(x[i], G[i]);
+        }
+
+        PlottingPanel panel = new PlottingPanel("x","y","Test");
+        DrawingFrame frame = new DrawingFrame(panel);
 
-            frame.setSize(1000,1000);
-            frame.setTitle("Test");
+        frame.setSize(1000,1000);
+        frame.setTitle("Test");
 
-            map.forEach((temp, dataset) -> {
-                panel.addDrawable(dataset);
-                panel.addDrawable(new FunctionDrawer(new RegressionFunction(parameters, n, temp)));
-            });
+        map.forEach((temp, dataset) -> {
+            panel.addDrawable(dataset);
+            panel.addDrawable(new FunctionDrawer(new RegressionFunction(parameters, n, temp)));
+        });
 
-            panel.repaint();
-            panel.render();
-            frame.render();
-            frame.setVisible(true);
-        }
+        panel.repaint();
+        panel.render();
+        frame.render();
+        frame.setVisible(true);
     }
 }
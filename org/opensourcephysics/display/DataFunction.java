@@ -8,6 +8,7 @@
 package org.opensourcephysics.display;
 import java.awt.Color;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -128,27 +129,33 @@ public class DataFunction extends Dataset {
     if(data.length==0) {
       return;
     }
-    double[] fData = new double[data.length];
-    int len = data[0].length;
-    for(int n = 0; n<len; n++) {                                 // number of data values for each variable
-      for(int i = 0; i<data.length; i++) {                       // number of variables
-        if(n<data[i].length) {
-          fData[i] = data[i][n];
-        } else {
-          fData[i] = Double.NaN;
-        }
+    int len = data[0].length;                                  // number of data values for each variable
+    double[][] columns = new double[data.length][];
+    for(int i = 0; i<data.length; i++) {                       // number of variables
+      columns[i] = data[i];
+      if(data[i].length<len) {                                 // missing values are NaN
+        columns[i] = new double[len];
+        Arrays.fill(columns[i], Double.NaN);
+        System.arraycopy(data[i], 0, columns[i], 0, data[i].length);
       }
-      double val = Double.NaN;
-      if(!"0".equals(functionString)||"0".equals(inputString)) { //$NON-NLS-1$ //$NON-NLS-2$
-        val = function.evaluate(fData);
-        String[] names = getVarNames();
-        for(int i = 0; i<names.length; i++) {
-          if((getExpression().indexOf(names[i])>-1)&&Double.isNaN(fData[i])) {
-            val = Double.NaN;
+    }
+    double[] vals = new double[len];
+    Arrays.fill(vals, Double.NaN);
+    if(!"0".equals(functionString)||"0".equals(inputString)) { //$NON-NLS-1$ //$NON-NLS-2$
+      function.evaluate(columns, vals);                        // all data values at once
+      String[] names = getVarNames();
+      for(int i = 0; i<names.length; i++) {
+        if(getExpression().indexOf(names[i])>-1) {
+          for(int n = 0; n<len; n++) {
+            if(Double.isNaN(columns[i][n])) {
+              vals[n] = Double.NaN;
+            }
           }
         }
       }
-      super.append(fData[0], val);
+    }
+    for(int n = 0; n<len; n++) {
+      super.append(columns[0][n], vals[n]);
     }
   }
 
@@ -657,6 +657,33 @@ public class Dataset extends AbstractTableModel implements Measurable, LogMeasur
     return getValidPoints(getYPoints());
   }
 
+  /**
+   * Gets the y uncertainties of the valid points, in the same order as getValidYPoints.
+   * Uncertainties are only available if every point was appended with one.
+   *
+   * @return the y uncertainties or null if some point has none
+   */
+  public double[] getValidYErrors() {
+    if(errorBars.size()!=index) {
+      return null;
+    }
+    double[] errors = new double[index];
+    int n = 0;
+    for(int i = 0; i<index; i++) {
+      if(Double.isNaN(ypoints[i])) {
+        continue;
+      }
+      // moveDatum and removeBadData keep the error bars in point order
+      errors[n++] = errorBars.get(i).dely;
+    }
+    if(n==index) {
+      return errors;
+    }
+    double[] temp = new double[n];
+    System.arraycopy(errors, 0, temp, 0, n);
+    return temp;
+  }
+
   /**
    *  Gets the sorted flag.
    *
@@ -1158,6 +1185,9 @@ public class Dataset extends AbstractTableModel implements Measurable, LogMeasur
         xpoints[i] = x;
         System.arraycopy(ypoints, i, ypoints, i+1, loc-i);
         ypoints[i] = y;
+        if(errorBars.size()==index) { // keep the error bars in point order
+          errorBars.add(i, errorBars.remove(loc));
+        }
         return;
       }
     }
@@ -1332,6 +1362,9 @@ public class Dataset extends AbstractTableModel implements Measurable, LogMeasur
   private void removeBadData() {
     for(int i = 0; i<index; i++) {
       if(Double.isNaN(xpoints[i])||Double.isInfinite(xpoints[i])||Double.isInfinite(ypoints[i])) {
+        if(errorBars.size()==index) { // keep the error bars in point order
+          errorBars.remove(i);
+        }
         if((index==1)||(i==index-1)) {
           // we only have one point and it is a bad point!
           index--;
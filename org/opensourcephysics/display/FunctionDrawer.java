@@ -65,6 +65,16 @@ public class FunctionDrawer implements Drawable, Measurable, Function {
     return function.evaluate(x);
   }
 
+  /**
+   * Evalutes the function at every element of x.
+   * @param x
+   * @param result the array for the values or null
+   * @return values of the function
+   */
+  public double[] evaluate(double[] x, double[] result) {
+    return function.evaluate(x, result);
+  }
+
   /**
    * Initialize the function range and the number of display points.
    * @param xmin  the beginning value of the range.
@@ -84,7 +94,14 @@ public class FunctionDrawer implements Drawable, Measurable, Function {
     if(numpts<1) {
       return;
     }
-    yrange[0] = function.evaluate(xmin);
+    double[] xs = new double[numpts+1];
+    xs[0] = xrange[0];
+    double dx = (xmax-xmin)/(numpts);
+    for(int i = 0; i<numpts; i++) {
+      xs[i+1] = xs[i]+dx;
+    }
+    double[] ys = function.evaluate(xs, null); // all points at once
+    yrange[0] = ys[0];
     yrange[1] = yrange[0]; // starting values for ymin and ymax
     if(filled) {
       generalPath.moveTo((float) xrange[0], 0);
@@ -93,10 +110,9 @@ public class FunctionDrawer implements Drawable, Measurable, Function {
       generalPath.moveTo((float) xrange[0], (float) yrange[0]);
     }
     double x = xrange[0];
-    double dx = (xmax-xmin)/(numpts);
-    for(int i = 0; i<numpts; i++) {
-      x = x+dx;
-      double y = function.evaluate(x);
+    for(int i = 1; i<=numpts; i++) {
+      x = xs[i];
+      double y = ys[i];
       generalPath.lineTo((float) x, (float) y);
       if(y<yrange[0]) {
         yrange[0] = y; // the minimum value
@@ -0,0 +1,230 @@
+/*
+ * Open Source Physics software is free software as described near the bottom of this code file.
+ *
+ * For additional information and documentation on Open Source Physics please see:
+ * <http://www.opensourcephysics.org/>
+ */
+
+package org.opensourcephysics.numerics;
+
+/**
+ * AutoDiff evaluates exact derivatives of models written with Dual arithmetic and adapts
+ * them to the numerics interfaces.
+ * This class cannot be subclassed or instantiated because all methods are static.
+ *
+ * A gradient or Jacobian costs one evaluation in Dual arithmetic, in which every operation
+ * also updates one derivative per variable, instead of the m+1 or 2m evaluations of finite
+ * differences, and it is exact to rounding error.  Use leastSquares for LevenbergMarquardt,
+ * Root.newtonMultivarDual for systems of equations and ode to drive the ODE solvers with the
+ * same rate model whose Jacobian is given by jacobian.
+ */
+public class AutoDiff {
+  private AutoDiff() {} // prohibit instantiation because all methods are static
+
+  /**
+   * Gets the derivative of f at x.
+   * @param f DualFunction f(x)
+   * @param x double
+   * @return double f'(x)
+   */
+  public static double derivative(DualFunction f, double x) {
+    return f.evaluate(Dual.variable(x)).derivative(0);
+  }
+
+  /**
+   * Gets the function f(x).
+   * @param f DualFunction f(x)
+   * @return Function
+   */
+  public static Function getFunction(final DualFunction f) {
+    return new Function() {
+      public double evaluate(double x) {
+        return f.evaluate(new Dual(x)).value();
+      }
+
+    };
+  }
+
+  /**
+   * Gets the derivative function f'(x).
+   * @param f DualFunction f(x)
+   * @return Function
+   */
+  public static Function getFirst(final DualFunction f) {
+    return new Function() {
+      public double evaluate(double x) {
+        return derivative(f, x);
+      }
+
+    };
+  }
+
+  /**
+   * Gets the gradient of f at x.
+   *
+   * If the gradient array is null, a new array is allocated.  Otherwise the gradient array is used.
+   * @param f the function
+   * @param x the variables
+   * @param gradient the gradient array
+   * @return f(x)
+   */
+  public static double gradient(DualMultiVarFunction f, double[] x, double[] gradient) {
+    Dual y = f.evaluate(Dual.variables(x));
+    y.gradient((gradient==null) ? new double[x.length] : gradient);
+    return y.value();
+  }
+
+  /**
+   * Gets the multivariable function f(x).
+   * @param f the function
+   * @return MultiVarFunction
+   */
+  public static MultiVarFunction getMultiVarFunction(final DualMultiVarFunction f) {
+    return new MultiVarFunction() {
+      public double evaluate(double[] x) {
+        return f.evaluate(constants(x)).value();
+      }
+
+    };
+  }
+
+  /**
+   * Gets the Jacobian J[i][k] = df[i]/dx[k] of f at x.
+   *
+   * If an array is null, a new array is allocated.  Otherwise the array is used.
+   * @param f the vector function
+   * @param x the variables
+   * @param value the array for f(x) or null
+   * @param jac the Jacobian array
+   * @return the Jacobian
+   */
+  public static double[][] jacobian(DualVectorFunction f, double[] x, double[] value, double[][] jac) {
+    Dual[] y = f.evaluate(Dual.variables(x), null);
+    if(jac==null) {
+      jac = new double[y.length][x.length];
+    }
+    for(int i = 0; i<y.length; i++) {
+      y[i].gradient(jac[i]);
+      if(value!=null) {
+        value[i] = y[i].value();
+      }
+    }
+    return jac;
+  }
+
+  /**
+   * Gets the vector function f(x).
+   * @param f the vector function
+   * @return VectorFunction
+   */
+  public static VectorFunction getVectorFunction(final DualVectorFunction f) {
+    return new VectorFunction() {
+      public double[] evaluate(double[] x, double[] result) {
+        return values(f.evaluate(constants(x), null), result);
+      }
+
+    };
+  }
+
+  /**
+   * Gets a least-squares function with the exact Jacobian from residuals written with Dual
+   * arithmetic.
+   * @param f the residuals
+   * @param n the number of residuals
+   * @return DifferentiableLeastSquaresFunction
+   */
+  public static DifferentiableLeastSquaresFunction leastSquares(final DualVectorFunction f, final int n) {
+    return new DifferentiableLeastSquaresFunction() {
+      public int getResidualCount() {
+        return n;
+      }
+
+      public double[] evaluate(double[] x, double[] r) {
+        return values(f.evaluate(constants(x), null), r);
+      }
+
+      public double evaluate(double[] x) {
+        double sum = 0;
+        Dual[] r = f.evaluate(constants(x), null);
+        for(int i = 0; i<n; i++) {
+          sum += r[i].value()*r[i].value();
+        }
+        return sum;
+      }
+
+      public double[][] jacobian(double[] x, double[][] jac) {
+        return AutoDiff.jacobian(f, x, null, jac);
+      }
+
+    };
+  }
+
+  /**
+   * Gets an ODE whose rates are given by a vector function of the state, so that the rate
+   * model also gives the exact Jacobian of the rates through jacobian.
+   * @param rates the rates as a function of the state
+   * @param state the state array of the ODE
+   * @return ODE
+   */
+  public static ODE ode(final DualVectorFunction rates, final double[] state) {
+    return new ODE() {
+      public double[] getState() {
+        return state;
+      }
+
+      public void getRate(double[] state, double[] rate) {
+        values(rates.evaluate(constants(state), null), rate);
+      }
+
+    };
+  }
+
+  /**
+   * Gets constants with the values of x.
+   * @param x
+   * @return the constants
+   */
+  public static Dual[] constants(double[] x) {
+    Dual[] c = new Dual[x.length];
+    for(int i = 0; i<x.length; i++) {
+      c[i] = new Dual(x[i]);
+    }
+    return c;
+  }
+
+  private static double[] values(Dual[] y, double[] result) {
+    if(result==null) {
+      result = new double[y.length];
+    }
+    for(int i = 0; i<y.length; i++) {
+      result[i] = y[i].value();
+    }
+    return result;
+  }
+
+}
+
+
+/*
+ * Open Source Physics software is free software; you can redistribute
+ * it and/or modify it under the terms of the GNU General Public License (GPL) as
+ * published by the Free Software Foundation; either version 2 of the License,
+ * or(at your option) any later version.
+
+ * Code that uses any portion of the code in the org.opensourcephysics package
+ * or any subpackage (subdirectory) of this package must must also be be released
+ * under the GNU GPL license.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston MA 02111-1307 USA
+ * or view the license online at http://www.gnu.org/copyleft/gpl.html
+ *
+ * Copyright (c) 2007  The Open Source Physics project
+ *                     http://www.opensourcephysics.org
+ */
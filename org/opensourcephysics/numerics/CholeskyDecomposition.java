@@ -0,0 +1,241 @@
+/*
+ * Open Source Physics software is free software as described near the bottom of this code file.
+ *
+ * For additional information and documentation on Open Source Physics please see:
+ * <http://www.opensourcephysics.org/>
+ */
+
+package org.opensourcephysics.numerics;
+
+/**
+ * CholeskyDecomposition factors a symmetric matrix A = L L^T.
+ *
+ * If the matrix is not positive definite the decomposition falls back to A = L D L^T
+ * with a unit lower triangular L, which handles symmetric indefinite matrices that do
+ * not need pivoting.  Only the lower triangle of the matrix is used.
+ *
+ * The buffers are allocated once so that a decomposition can be reused for repeated
+ * systems of the same size without creating garbage.
+ */
+public class CholeskyDecomposition {
+  /**
+   * Lower triangular factor
+   */
+  private double[][] L;
+
+  /**
+   * Diagonal of the L D L^T factorization
+   */
+  private double[] d;
+
+  /**
+   * True if the matrix was positive definite and L is the Cholesky factor
+   */
+  private boolean positiveDefinite;
+
+  /**
+   * True if either factorization succeeded
+   */
+  private boolean decomposed;
+
+  /**
+   * Constructs a reusable decomposition of an n by n system.
+   *
+   * @param n int the size of the system
+   */
+  public CholeskyDecomposition(int n) {
+    L = new double[n][n];
+    d = new double[n];
+  }
+
+  /**
+   * Constructs and performs the decomposition of a symmetric matrix.
+   *
+   * @param components double[][] a symmetric matrix
+   */
+  public CholeskyDecomposition(double[][] components) {
+    this(components.length);
+    decompose(components);
+  }
+
+  /**
+   * Decomposes a new symmetric system into this decomposition's buffers.
+   *
+   * @param components double[][] an n by n symmetric matrix
+   * @return true if the matrix could be factored
+   * @throws IllegalArgumentException if the size of the system has changed
+   */
+  public boolean decompose(double[][] components) throws IllegalArgumentException {
+    int n = L.length;
+    if((components.length!=n)||(components[0].length!=n)) {
+      throw new IllegalArgumentException("Illegal system: a "+n+" by "+n+" matrix is required"); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+    positiveDefinite = cholesky(components);
+    decomposed = positiveDefinite||ldlt(components);
+    return decomposed;
+  }
+
+  private boolean cholesky(double[][] a) {
+    int n = L.length;
+    for(int j = 0; j<n; j++) {
+      double[] Lj = L[j];
+      double sum = a[j][j];
+      for(int k = 0; k<j; k++) {
+        sum -= Lj[k]*Lj[k];
+      }
+      if(!(sum>0)) { // also catches NaN
+        return false;
+      }
+      double Ljj = Math.sqrt(sum);
+      Lj[j] = Ljj;
+      for(int i = j+1; i<n; i++) {
+        double[] Li = L[i];
+        sum = a[i][j];
+        for(int k = 0; k<j; k++) {
+          sum -= Li[k]*Lj[k];
+        }
+        Li[j] = sum/Ljj;
+      }
+    }
+    return true;
+  }
+
+  private boolean ldlt(double[][] a) {
+    int n = L.length;
+    for(int j = 0; j<n; j++) {
+      double[] Lj = L[j];
+      double sum = a[j][j];
+      for(int k = 0; k<j; k++) {
+        sum -= Lj[k]*Lj[k]*d[k];
+      }
+      if((sum==0)||Double.isNaN(sum)||Double.isInfinite(sum)) {
+        return false;
+      }
+      d[j] = sum;
+      Lj[j] = 1;
+      for(int i = j+1; i<n; i++) {
+        double[] Li = L[i];
+        sum = a[i][j];
+        for(int k = 0; k<j; k++) {
+          sum -= Li[k]*Lj[k]*d[k];
+        }
+        Li[j] = sum/d[j];
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if the last matrix was positive definite.
+   *
+   * @return boolean
+   */
+  public boolean isPositiveDefinite() {
+    return decomposed&&positiveDefinite;
+  }
+
+  /**
+   * Returns true if the last matrix could be factored.
+   *
+   * @return boolean
+   */
+  public boolean isDecomposed() {
+    return decomposed;
+  }
+
+  /**
+   * Solves the system without allocating arrays.  The answer may be the same array as c.
+   *
+   * @return double[] the answer or null if the matrix could not be factored
+   * @param c double[] the right hand side
+   * @param answer double[] the array that receives the solution
+   */
+  public double[] solve(double[] c, double[] answer) {
+    if(!decomposed) {
+      return null;
+    }
+    int n = L.length;
+    for(int i = 0; i<n; i++) { // forward substitution L y = c
+      double sum = c[i];
+      double[] Li = L[i];
+      for(int k = 0; k<i; k++) {
+        sum -= Li[k]*answer[k];
+      }
+      answer[i] = positiveDefinite ? sum/Li[i] : sum;
+    }
+    if(!positiveDefinite) {
+      for(int i = 0; i<n; i++) {
+        answer[i] /= d[i];
+      }
+    }
+    for(int i = n-1; i>=0; i--) { // backward substitution L^T x = y
+      double sum = answer[i];
+      for(int k = i+1; k<n; k++) {
+        sum -= L[k][i]*answer[k];
+      }
+      answer[i] = positiveDefinite ? sum/L[i][i] : sum;
+    }
+    return answer;
+  }
+
+  /**
+   * Solves the system.
+   *
+   * @return double[] the answer or null if the matrix could not be factored
+   * @param c double[] the right hand side
+   */
+  public double[] solve(double[] c) {
+    return solve(c, new double[c.length]);
+  }
+
+  /**
+   * Calculates the inverse matrix components.
+   *
+   * @return the matrix inverse or null if the matrix could not be factored
+   */
+  public double[][] inverseMatrixComponents() {
+    if(!decomposed) {
+      return null;
+    }
+    int n = L.length;
+    double[][] inverseMatrix = new double[n][n];
+    double[] column = new double[n];
+    for(int i = 0; i<n; i++) {
+      for(int j = 0; j<n; j++) {
+        column[j] = 0;
+      }
+      column[i] = 1;
+      solve(column, column);
+      for(int j = 0; j<n; j++) {
+        inverseMatrix[j][i] = column[j];
+      }
+    }
+    return inverseMatrix;
+  }
+
+}
+
+
+/*
+ * Open Source Physics software is free software; you can redistribute
+ * it and/or modify it under the terms of the GNU General Public License (GPL) as
+ * published by the Free Software Foundation; either version 2 of the License,
+ * or(at your option) any later version.
+
+ * Code that uses any portion of the code in the org.opensourcephysics package
+ * or any subpackage (subdirectory) of this package must must also be be released
+ * under the GNU GPL license.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston MA 02111-1307 USA
+ * or view the license online at http://www.gnu.org/copyleft/gpl.html
+ *
+ * Copyright (c) 2007  The Open Source Physics project
+ *                     http://www.opensourcephysics.org
+ */
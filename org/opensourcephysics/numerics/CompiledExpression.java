@@ -0,0 +1,250 @@
+/*
+ * Open Source Physics software is free software as described near the bottom of this code file.
+ *
+ * For additional information and documentation on Open Source Physics please see:
+ * <http://www.opensourcephysics.org/>
+ */
+
+package org.opensourcephysics.numerics;
+
+/**
+ * CompiledExpression is the superclass of the classes that ExpressionCompiler generates
+ * from the postfix code of a SuryonoParser.  A compiled expression evaluates the function
+ * in JVM bytecode instead of interpreting the postfix code, gives the same results as the
+ * parser and keeps no state, so it can be shared by threads.
+ *
+ * Every compiled expression is defined by its own class loader, so its class is unloaded
+ * when the expression is no longer used.
+ */
+public abstract class CompiledExpression implements Function, MultiVarFunction {
+  private static boolean enabled = true;
+  int variableCount;
+
+  /**
+   * Constructs the expression.  Called by generated subclasses.
+   */
+  protected CompiledExpression() {}
+
+  /**
+   * Sets whether ParsedFunction and ParsedMultiVarFunction compile their functions.
+   *
+   * @param enable true to compile, false to always interpret the postfix code
+   */
+  public static void setEnabled(boolean enable) {
+    enabled = enable;
+  }
+
+  /**
+   * Gets whether ParsedFunction and ParsedMultiVarFunction compile their functions.
+   *
+   * @return true if compiling
+   */
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Evaluates the function of a single variable.
+   *
+   * @param x the variable
+   * @return the value, or 0 if the function does not have one variable
+   */
+  public double evaluate(double x) {
+    if(variableCount!=1) {
+      return 0;
+    }
+    return compute(x);
+  }
+
+  /**
+   * Evaluates the function.
+   *
+   * @param v the variables
+   * @return the value, or 0 if the number of variables is wrong
+   */
+  public double evaluate(double[] v) {
+    if(v.length!=variableCount) {
+      System.out.println("JEParser Error: incorrect number of variables."); //$NON-NLS-1$
+      return 0;
+    }
+    return compute(v);
+  }
+
+  /**
+   * Evaluates the function of a single variable at every element of x.
+   *
+   * @param x the values of the variable
+   * @param result the array for the values or null
+   * @return the result array
+   */
+  public double[] evaluate(double[] x, double[] result) {
+    if(variableCount!=1) {
+      return Function.super.evaluate(x, result);
+    }
+    if(result==null) {
+      result = new double[x.length];
+    }
+    for(int i = 0; i<x.length; i++) {
+      result[i] = compute(x[i]);
+    }
+    return result;
+  }
+
+  /**
+   * Evaluates the function at the points given by columns of the variables.
+   *
+   * @param x the values of the variables, one column per variable
+   * @param result the array for the values or null
+   * @return the result array
+   */
+  public double[] evaluate(double[][] x, double[] result) {
+    if(x.length!=variableCount) {
+      return MultiVarFunction.super.evaluate(x, result);
+    }
+    if(result==null) {
+      result = new double[(x.length==0) ? 0 : x[0].length];
+    }
+    double[] point = new double[variableCount];
+    for(int i = 0; i<result.length; i++) {
+      for(int k = 0; k<variableCount; k++) {
+        point[k] = x[k][i];
+      }
+      result[i] = compute(point);
+    }
+    return result;
+  }
+
+  /**
+   * Computes the function of the variables.
+   */
+  protected abstract double compute(double[] v);
+
+  /**
+   * Computes the function of a single variable.
+   */
+  protected abstract double compute(double x);
+
+  // helpers with the semantics of the interpreted postfix code
+
+  protected static double result(double value) {
+    return Double.isNaN(value) ? 0.0 : value;
+  }
+
+  protected static double div(double a, double b) {
+    return(b!=0) ? a/b : a/1.0e-128;
+  }
+
+  protected static double lt(double a, double b) {
+    return(a<b) ? 1.0 : 0.0;
+  }
+
+  protected static double gt(double a, double b) {
+    return(a>b) ? 1.0 : 0.0;
+  }
+
+  protected static double le(double a, double b) {
+    return(a<=b) ? 1.0 : 0.0;
+  }
+
+  protected static double ge(double a, double b) {
+    return(a>=b) ? 1.0 : 0.0;
+  }
+
+  protected static double eq(double a, double b) {
+    return(a==b) ? 1.0 : 0.0;
+  }
+
+  protected static double ne(double a, double b) {
+    return(a!=b) ? 1.0 : 0.0;
+  }
+
+  protected static double and(double a, double b) {
+    return((a!=0.0)&&(b!=0.0)) ? 1.0 : 0.0;
+  }
+
+  protected static double or(double a, double b) {
+    return((a!=0.0)||(b!=0.0)) ? 1.0 : 0.0;
+  }
+
+  protected static double not(double a) {
+    return(a==0.0) ? 1.0 : 0.0;
+  }
+
+  protected static double frac(double x) {
+    return x-Math.rint(x);
+  }
+
+  protected static double sinh(double x) {
+    return(Math.exp(x)-Math.exp(-x))/2;
+  }
+
+  protected static double cosh(double x) {
+    return(Math.exp(x)+Math.exp(-x))/2;
+  }
+
+  protected static double tanh(double x) {
+    double a = Math.exp(x);
+    double b = Math.exp(-x);
+    return(a-b)/(a+b);
+  }
+
+  protected static double asinh(double x) {
+    return Math.log(x+Math.sqrt(x*x+1));
+  }
+
+  protected static double acosh(double x) {
+    return Math.log(x+Math.sqrt(x*x-1));
+  }
+
+  protected static double atanh(double x) {
+    return Math.log((1+x)/(1-x))/2;
+  }
+
+  protected static double round(double x) {
+    return Math.round(x);
+  }
+
+  protected static double sign(double x) {
+    if(x==0.0d) {
+      return 0;
+    } else if(x>0.0d) {
+      return 1;
+    } else {
+      return -1;
+    }
+  }
+
+  protected static double step(double x) {
+    return(x<0) ? 0 : 1;
+  }
+
+  protected static double random(double x) {
+    return x*Math.random();
+  }
+
+}
+
+
+/*
+ * Open Source Physics software is free software; you can redistribute
+ * it and/or modify it under the terms of the GNU General Public License (GPL) as
+ * published by the Free Software Foundation; either version 2 of the License,
+ * or(at your option) any later version.
+
+ * Code that uses any portion of the code in the org.opensourcephysics package
+ * or any subpackage (subdirectory) of this package must must also be be released
+ * under the GNU GPL license.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston MA 02111-1307 USA
+ * or view the license online at http://www.gnu.org/copyleft/gpl.html
+ *
+ * Copyright (c) 2007  The Open Source Physics project
+ *                     http://www.opensourcephysics.org
+ */
@@ -0,0 +1,285 @@
+/*
+ * Open Source Physics software is free software as described near the bottom of this code file.
+ *
+ * For additional information and documentation on Open Source Physics please see:
+ * <http://www.opensourcephysics.org/>
+ */
+
+package org.opensourcephysics.numerics;
+
+/**
+ * ConstrainedFunction presents a function with box bounds and frozen parameters as an
+ * unconstrained function of its free parameters.
+ *
+ * A free parameter x with both bounds is mapped from an internal parameter u by
+ * x = l+(h-l)(sin(u)+1)/2, one with only a lower bound by x = l-1+sqrt(u*u+1) and one with
+ * only an upper bound by x = h+1-sqrt(u*u+1), so the function is never evaluated outside
+ * the box.  Frozen parameters keep their values and are not seen by the minimizer.
+ */
+class ConstrainedFunction implements MultiVarFunction {
+  static final double EDGE = 1.e-6; //starting points are moved this far inside the bounds
+  final MultiVarFunction f;
+  final double[] full; //the parameters of f with the frozen values in place
+  final int[] free;    //the index in full of every free parameter
+  final double[] lower, upper;
+
+  ConstrainedFunction(MultiVarFunction f, double[] x, double[] lower, double[] upper, boolean[] frozen) {
+    int m = x.length;
+    if(((lower!=null)&&(lower.length!=m))||((upper!=null)&&(upper.length!=m))||((frozen!=null)&&(frozen.length!=m))) {
+      throw new IllegalArgumentException("Bounds and frozen flags must have one value per parameter."); //$NON-NLS-1$
+    }
+    this.f = f;
+    full = x.clone();
+    int n = 0;
+    for(int i = 0; i<m; i++) {
+      if((frozen==null)||!frozen[i]) {
+        n++;
+      }
+    }
+    free = new int[n];
+    this.lower = new double[n];
+    this.upper = new double[n];
+    n = 0;
+    for(int i = 0; i<m; i++) {
+      if((frozen==null)||!frozen[i]) {
+        free[n] = i;
+        this.lower[n] = (lower==null) ? Double.NEGATIVE_INFINITY : lower[i];
+        this.upper[n] = (upper==null) ? Double.POSITIVE_INFINITY : upper[i];
+        n++;
+      }
+    }
+  }
+
+  /**
+   * Wraps a function in the most specific form that the minimizers can use.
+   */
+  static ConstrainedFunction wrap(MultiVarFunction f, double[] x, double[] lower, double[] upper, boolean[] frozen) {
+    if(!(f instanceof LeastSquaresFunction)) {
+      return new ConstrainedFunction(f, x, lower, upper, frozen);
+    }
+    if(f instanceof LinearLeastSquaresFunction) {
+      ConstrainedFunction c = new Linear(f, x, lower, upper, frozen);
+      if(!c.isBounded()) {
+        return c;
+      }
+    }
+    if((f instanceof DifferentiableLeastSquaresFunction)||(f instanceof LinearLeastSquaresFunction)) {
+      return new Differentiable(f, x, lower, upper, frozen);
+    }
+    return new LeastSquares(f, x, lower, upper, frozen);
+  }
+
+  /**
+   * Returns true if any free parameter is bounded.
+   */
+  boolean isBounded() {
+    for(int k = 0; k<free.length; k++) {
+      if((lower[k]>Double.NEGATIVE_INFINITY)||(upper[k]<Double.POSITIVE_INFINITY)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Gets the internal parameters of x.  Parameters outside the box are moved inside.
+   */
+  double[] toInternal(double[] x) {
+    double[] u = new double[free.length];
+    for(int k = 0; k<free.length; k++) {
+      double xk = x[free[k]], l = lower[k], h = upper[k];
+      if((l>Double.NEGATIVE_INFINITY)&&(h<Double.POSITIVE_INFINITY)) {
+        double s = 2*(xk-l)/(h-l)-1;
+        u[k] = Math.asin(Math.max(-1+EDGE, Math.min(1-EDGE, s)));
+      } else if(l>Double.NEGATIVE_INFINITY) {
+        double d = Math.max(xk-l, EDGE)+1;
+        u[k] = Math.sqrt(d*d-1);
+      } else if(h<Double.POSITIVE_INFINITY) {
+        double d = Math.max(h-xk, EDGE)+1;
+        u[k] = Math.sqrt(d*d-1);
+      } else {
+        u[k] = xk;
+      }
+    }
+    return u;
+  }
+
+  /**
+   * Sets the parameters of the function from the internal parameters.
+   */
+  void toExternal(double[] u, double[] x) {
+    for(int k = 0; k<free.length; k++) {
+      double l = lower[k], h = upper[k];
+      double xk;
+      if((l>Double.NEGATIVE_INFINITY)&&(h<Double.POSITIVE_INFINITY)) {
+        xk = l+0.5*(h-l)*(Math.sin(u[k])+1);
+      } else if(l>Double.NEGATIVE_INFINITY) {
+        xk = l-1+Math.sqrt(u[k]*u[k]+1);
+      } else if(h<Double.POSITIVE_INFINITY) {
+        xk = h+1-Math.sqrt(u[k]*u[k]+1);
+      } else {
+        xk = u[k];
+      }
+      x[free[k]] = xk;
+    }
+  }
+
+  /**
+   * Gets the derivative of the kth free parameter with respect to its internal parameter.
+   */
+  double derivative(int k, double u) {
+    double l = lower[k], h = upper[k];
+    if((l>Double.NEGATIVE_INFINITY)&&(h<Double.POSITIVE_INFINITY)) {
+      return 0.5*(h-l)*Math.cos(u);
+    } else if(l>Double.NEGATIVE_INFINITY) {
+      return u/Math.sqrt(u*u+1);
+    } else if(h<Double.POSITIVE_INFINITY) {
+      return -u/Math.sqrt(u*u+1);
+    }
+    return 1;
+  }
+
+  /**
+   * Gets the parameters of the function at u in a new array, so that the function can be
+   * evaluated concurrently by the parallel Hessian.
+   */
+  double[] external(double[] u) {
+    double[] x = full.clone();
+    toExternal(u, x);
+    return x;
+  }
+
+  public double evaluate(double[] u) {
+    return f.evaluate(external(u));
+  }
+
+  /**
+   * LeastSquares passes the residuals through.
+   */
+  static class LeastSquares extends ConstrainedFunction implements LeastSquaresFunction {
+    LeastSquares(MultiVarFunction f, double[] x, double[] lower, double[] upper, boolean[] frozen) {
+      super(f, x, lower, upper, frozen);
+    }
+
+    public int getResidualCount() {
+      return((LeastSquaresFunction) f).getResidualCount();
+    }
+
+    public double[] evaluate(double[] u, double[] r) {
+      return((LeastSquaresFunction) f).evaluate(external(u), r);
+    }
+
+  }
+
+  /**
+   * Differentiable applies the chain rule to the analytic Jacobian, or to the design matrix
+   * of a linear function.
+   */
+  static class Differentiable extends LeastSquares implements DifferentiableLeastSquaresFunction {
+    double[][] jac; //the Jacobian of f
+
+    Differentiable(MultiVarFunction f, double[] x, double[] lower, double[] upper, boolean[] frozen) {
+      super(f, x, lower, upper, frozen);
+    }
+
+    public double[][] jacobian(double[] u, double[][] J) {
+      int n = getResidualCount();
+      if(jac==null) {
+        jac = new double[n][full.length];
+        if(!(f instanceof DifferentiableLeastSquaresFunction)) { //constant Jacobian -A
+          double[][] A = ((LinearLeastSquaresFunction) f).getDesignMatrix();
+          for(int i = 0; i<n; i++) {
+            for(int j = 0; j<full.length; j++) {
+              jac[i][j] = -A[i][j];
+            }
+          }
+        }
+      }
+      if(f instanceof DifferentiableLeastSquaresFunction) {
+        jac = ((DifferentiableLeastSquaresFunction) f).jacobian(external(u), jac);
+      }
+      if(J==null) {
+        J = new double[n][free.length];
+      }
+      for(int k = 0; k<free.length; k++) {
+        double d = derivative(k, u[k]);
+        for(int i = 0; i<n; i++) {
+          J[i][k] = jac[i][free[k]]*d;
+        }
+      }
+      return J;
+    }
+
+  }
+
+  /**
+   * Linear removes the frozen columns of the design matrix of a function without bounds.
+   */
+  static class Linear extends LeastSquares implements LinearLeastSquaresFunction {
+    double[][] A; //the design matrix of f
+
+    Linear(MultiVarFunction f, double[] x, double[] lower, double[] upper, boolean[] frozen) {
+      super(f, x, lower, upper, frozen);
+    }
+
+    public double[][] getDesignMatrix() {
+      if(A==null) {
+        A = ((LinearLeastSquaresFunction) f).getDesignMatrix();
+      }
+      double[][] design = new double[A.length][free.length];
+      for(int i = 0; i<A.length; i++) {
+        for(int k = 0; k<free.length; k++) {
+          design[i][k] = A[i][free[k]];
+        }
+      }
+      return design;
+    }
+
+    public double[] getObservations() {
+      //move the contribution of the frozen parameters to the observations
+      if(A==null) {
+        A = ((LinearLeastSquaresFunction) f).getDesignMatrix();
+      }
+      double[] y = ((LinearLeastSquaresFunction) f).getObservations().clone();
+      boolean[] isFree = new boolean[full.length];
+      for(int k = 0; k<free.length; k++) {
+        isFree[free[k]] = true;
+      }
+      for(int i = 0; i<y.length; i++) {
+        for(int j = 0; j<full.length; j++) {
+          if(!isFree[j]) {
+            y[i] -= A[i][j]*full[j];
+          }
+        }
+      }
+      return y;
+    }
+
+  }
+
+}
+
+
+/*
+ * Open Source Physics software is free software; you can redistribute
+ * it and/or modify it under the terms of the GNU General Public License (GPL) as
+ * published by the Free Software Foundation; either version 2 of the License,
+ * or(at your option) any later version.
+
+ * Code that uses any portion of the code in the org.opensourcephysics package
+ * or any subpackage (subdirectory) of this package must must also be be released
+ * under the GNU GPL license.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston MA 02111-1307 USA
+ * or view the license online at http://www.gnu.org/copyleft/gpl.html
+ *
+ * Copyright (c) 2007  The Open Source Physics project
+ *                     http://www.opensourcephysics.org
+ */
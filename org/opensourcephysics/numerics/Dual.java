@@ -0,0 +1,376 @@
+/*
+ * Open Source Physics software is free software as described near the bottom of this code file.
+ *
+ * For additional information and documentation on Open Source Physics please see:
+ * <http://www.opensourcephysics.org/>
+ */
+
+package org.opensourcephysics.numerics;
+
+/**
+ * Dual is a dual number for forward-mode automatic differentiation.  It carries the value
+ * of an expression together with its derivatives with respect to a set of independent
+ * variables, and every operation applies the chain rule exactly.
+ *
+ * A model written with Dual arithmetic is evaluated once at variables created by
+ * Dual.variables to get its value and its exact gradient, so no step size has to be
+ * chosen.  Constants have no derivative array and cost no more than a double.
+ */
+public class Dual {
+  /** the value */
+  private final double v;
+
+  /** the derivatives with respect to the variables or null for a constant */
+  private final double[] d;
+
+  //------------------------------------------------------------------------
+  // Constructors
+
+  /**
+   * Constructs a constant.
+   * @param value
+   */
+  public Dual(double value) {
+    v = value;
+    d = null;
+  }
+
+  /**
+   * Constructs a dual number with the given derivatives.  The array is not copied.
+   * @param value
+   * @param derivatives the derivatives with respect to the variables or null
+   */
+  public Dual(double value, double[] derivatives) {
+    v = value;
+    d = derivatives;
+  }
+
+  /**
+   * Gets independent variables at x.  Variable k has a derivative of one with respect to
+   * itself and zero with respect to the others.
+   *
+   * @param x the values of the variables
+   * @return the variables
+   */
+  public static Dual[] variables(double[] x) {
+    int m = x.length;
+    Dual[] u = new Dual[m];
+    for(int k = 0; k<m; k++) {
+      double[] dk = new double[m];
+      dk[k] = 1;
+      u[k] = new Dual(x[k], dk);
+    }
+    return u;
+  }
+
+  /**
+   * Gets a single independent variable at x.
+   *
+   * @param x the value of the variable
+   * @return the variable
+   */
+  public static Dual variable(double x) {
+    return new Dual(x, new double[] {1});
+  }
+
+  //------------------------------------------------------------------------
+  // Accessors
+
+  /**
+   * Gets the value.
+   * @return double
+   */
+  public double value() {
+    return v;
+  }
+
+  /**
+   * Gets the derivative with respect to variable k.
+   * @param k
+   * @return double
+   */
+  public double derivative(int k) {
+    return(d==null) ? 0 : d[k];
+  }
+
+  /**
+   * Copies the derivatives into the gradient array.  The array is zeroed for a constant.
+   *
+   * If the gradient array is null, a new array is allocated.  Otherwise the gradient array is used.
+   * @param gradient an array with one element per variable
+   * @return the gradient or null for a constant and a null array
+   */
+  public double[] gradient(double[] gradient) {
+    if(d==null) {
+      if(gradient!=null) {
+        java.util.Arrays.fill(gradient, 0);
+      }
+      return gradient;
+    }
+    if(gradient==null) {
+      gradient = new double[d.length];
+    }
+    System.arraycopy(d, 0, gradient, 0, d.length);
+    return gradient;
+  }
+
+  /**
+   * Returns true if the number has no derivatives.
+   * @return boolean
+   */
+  public boolean isConstant() {
+    return d==null;
+  }
+
+  public String toString() {
+    return v+" "+java.util.Arrays.toString(d); //$NON-NLS-1$
+  }
+
+  //------------------------------------------------------------------------
+  // Chain rule
+
+  /**
+   * Gets f(this) where df is the derivative of f at the value.
+   */
+  private Dual chain(double f, double df) {
+    if(d==null) {
+      return new Dual(f);
+    }
+    double[] r = new double[d.length];
+    for(int k = 0; k<r.length; k++) {
+      r[k] = df*d[k];
+    }
+    return new Dual(f, r);
+  }
+
+  /**
+   * Gets a number with the value f and the derivatives a*x'+b*y'.
+   */
+  private static Dual combine(double f, double a, Dual x, double b, Dual y) {
+    if(x.d==null) {
+      return y.chain(f, b);
+    }
+    if(y.d==null) {
+      return x.chain(f, a);
+    }
+    double[] r = new double[x.d.length];
+    for(int k = 0; k<r.length; k++) {
+      r[k] = a*x.d[k]+b*y.d[k];
+    }
+    return new Dual(f, r);
+  }
+
+  //------------------------------------------------------------------------
+  // Arithmetic
+
+  /**
+   * Adds a dual number.
+   * @param z
+   * @return this+z
+   */
+  public Dual add(Dual z) {
+    return combine(v+z.v, 1, this, 1, z);
+  }
+
+  /**
+   * Adds a constant.
+   * @param c
+   * @return this+c
+   */
+  public Dual add(double c) {
+    return new Dual(v+c, d);
+  }
+
+  /**
+   * Subtracts a dual number.
+   * @param z
+   * @return this-z
+   */
+  public Dual subtract(Dual z) {
+    return combine(v-z.v, 1, this, -1, z);
+  }
+
+  /**
+   * Subtracts a constant.
+   * @param c
+   * @return this-c
+   */
+  public Dual subtract(double c) {
+    return new Dual(v-c, d);
+  }
+
+  /**
+   * Negates the number.
+   * @return -this
+   */
+  public Dual neg() {
+    return chain(-v, -1);
+  }
+
+  /**
+   * Multiplies by a dual number.
+   * @param z
+   * @return this*z
+   */
+  public Dual mul(Dual z) {
+    return combine(v*z.v, z.v, this, v, z);
+  }
+
+  /**
+   * Multiplies by a constant.
+   * @param c
+   * @return this*c
+   */
+  public Dual mul(double c) {
+    return chain(v*c, c);
+  }
+
+  /**
+   * Divides by a dual number.
+   * @param z
+   * @return this/z
+   */
+  public Dual div(Dual z) {
+    double q = v/z.v;
+    return combine(q, 1/z.v, this, -q/z.v, z);
+  }
+
+  /**
+   * Divides by a constant.
+   * @param c
+   * @return this/c
+   */
+  public Dual div(double c) {
+    return chain(v/c, 1/c);
+  }
+
+  /**
+   * Inverts the number.
+   * @return 1/this
+   */
+  public Dual invert() {
+    return chain(1/v, -1/(v*v));
+  }
+
+  /**
+   * Raises the number to a constant power.
+   * @param exponent
+   * @return this^exponent
+   */
+  public Dual power(double exponent) {
+    if(exponent==0) {
+      return new Dual(1);
+    }
+    return chain(Math.pow(v, exponent), exponent*Math.pow(v, exponent-1));
+  }
+
+  /**
+   * Raises the number to a dual power.  The value must be positive unless the exponent
+   * is a constant.
+   * @param exponent
+   * @return this^exponent
+   */
+  public Dual power(Dual exponent) {
+    if(exponent.d==null) {
+      return power(exponent.v);
+    }
+    double f = Math.pow(v, exponent.v);
+    return combine(f, exponent.v*Math.pow(v, exponent.v-1), this, f*Math.log(v), exponent);
+  }
+
+  //------------------------------------------------------------------------
+  // Functions
+
+  public Dual abs() {
+    return chain(Math.abs(v), (v<0) ? -1 : 1);
+  }
+
+  public Dual exp() {
+    double f = Math.exp(v);
+    return chain(f, f);
+  }
+
+  public Dual log() {
+    return chain(Math.log(v), 1/v);
+  }
+
+  public Dual sqrt() {
+    double f = Math.sqrt(v);
+    return chain(f, 0.5/f);
+  }
+
+  public Dual sin() {
+    return chain(Math.sin(v), Math.cos(v));
+  }
+
+  public Dual cos() {
+    return chain(Math.cos(v), -Math.sin(v));
+  }
+
+  public Dual tan() {
+    double f = Math.tan(v);
+    return chain(f, 1+f*f);
+  }
+
+  public Dual asin() {
+    return chain(Math.asin(v), 1/Math.sqrt(1-v*v));
+  }
+
+  public Dual acos() {
+    return chain(Math.acos(v), -1/Math.sqrt(1-v*v));
+  }
+
+  public Dual atan() {
+    return chain(Math.atan(v), 1/(1+v*v));
+  }
+
+  public Dual sinh() {
+    return chain(Math.sinh(v), Math.cosh(v));
+  }
+
+  public Dual cosh() {
+    return chain(Math.cosh(v), Math.sinh(v));
+  }
+
+  public Dual tanh() {
+    double f = Math.tanh(v);
+    return chain(f, 1-f*f);
+  }
+
+  /**
+   * Gets the angle of the point (x, y) as Math.atan2(y, x).
+   * @param y
+   * @param x
+   * @return the angle
+   */
+  public static Dual atan2(Dual y, Dual x) {
+    double r2 = x.v*x.v+y.v*y.v;
+    return combine(Math.atan2(y.v, x.v), x.v/r2, y, -y.v/r2, x);
+  }
+
+}
+
+
+/*
+ * Open Source Physics software is free software; you can redistribute
+ * it and/or modify it under the terms of the GNU General Public License (GPL) as
+ * published by the Free Software Foundation; either version 2 of the License,
+ * or(at your option) any later version.
+
+ * Code that uses any portion of the code in the org.opensourcephysics package
+ * or any subpackage (subdirectory) of this package must must also be be released
+ * under the GNU GPL license.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston MA 02111-1307 USA
+ * or view the license online at http://www.gnu.org/copyleft/gpl.html
+ *
+ * Copyright (c) 2007  The Open Source Physics project
+ *                     http://www.opensourcephysics.org
+ */
@@ -0,0 +1,617 @@
+/*
+ * Open Source Physics software is free software as described near the bottom of this code file.
+ *
+ * For additional information and documentation on Open Source Physics please see:
+ * <http://www.opensourcephysics.org/>
+ */
+
+package org.opensourcephysics.numerics;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * ExpressionCompiler translates the postfix code of a SuryonoParser into the bytecode of a
+ * CompiledExpression subclass.  Every postfix operation becomes JVM operations on the
+ * operand stack, references become local variables and if(,,) becomes branches.  The
+ * class file version predates stack map frames so no frames have to be computed.
+ */
+class ExpressionCompiler {
+  private static final String SUPER = "org/opensourcephysics/numerics/CompiledExpression"; //$NON-NLS-1$
+  private static final String MATH = "java/lang/Math";                                      //$NON-NLS-1$
+  private static final String D_D = "(D)D";                                                 //$NON-NLS-1$
+  private static final String DD_D = "(DD)D";                                               //$NON-NLS-1$
+  // opcodes
+  private static final int DCONST_0 = 0x0e, DCONST_1 = 0x0f, BIPUSH = 0x10, SIPUSH = 0x11, LDC2_W = 0x14;
+  private static final int DLOAD = 0x18, ALOAD_0 = 0x2a, ALOAD_1 = 0x2b, DALOAD = 0x31, DSTORE = 0x39;
+  private static final int DUP2 = 0x5c, DADD = 0x63, DSUB = 0x67, DMUL = 0x6b, DDIV = 0x6f, DNEG = 0x77;
+  private static final int DCMPL = 0x97, IFEQ = 0x99, GOTO = 0xa7, DRETURN = 0xaf, RETURN = 0xb1;
+  private static final int INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8;
+  // the expression
+  private final String[] codes; // the references in evaluation order, then the function
+  private final double[] number;
+  private final int variableCount;
+  private final boolean radian;
+  // the class file
+  private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+  private final DataOutputStream poolData = new DataOutputStream(pool);
+  private final HashMap<String, Integer> poolIndex = new HashMap<String, Integer>();
+  private int poolCount = 1;
+  // the method being generated
+  private byte[] code = new byte[256];
+  private int length, depth, maxDepth;
+
+  private ExpressionCompiler(String[] codes, double[] number, int variableCount, boolean radian) {
+    this.codes = codes;
+    this.number = number;
+    this.variableCount = variableCount;
+    this.radian = radian;
+  }
+
+  /**
+   * Compiles postfix code.
+   *
+   * @param codes the postfix code of the references in evaluation order, then of the function
+   * @param number the numeric constants in the order they appear in the code
+   * @param variableCount the number of variables
+   * @param radian true if angles are in radians
+   * @return the compiled expression or null if the code cannot be compiled
+   */
+  static CompiledExpression compile(String[] codes, double[] number, int variableCount, boolean radian) {
+    try {
+      byte[] b = new ExpressionCompiler(codes, number, variableCount, radian).toClassFile();
+      if(b==null) {
+        return null;
+      }
+      // every class has its own loader so they can share the name
+      Class<?> c = new Loader().define("org.opensourcephysics.numerics.Expression", b); //$NON-NLS-1$
+      CompiledExpression expression = (CompiledExpression) c.getDeclaredConstructor().newInstance();
+      expression.variableCount = variableCount;
+      return expression;
+    } catch(Throwable ex) { // e.g. a security manager that forbids class loaders
+      NumericsLog.fine("expression not compiled: "+ex); //$NON-NLS-1$
+      return null;
+    }
+  }
+
+  /**
+   * Gets the class file or null if the code cannot be compiled.
+   */
+  private byte[] toClassFile() throws IOException {
+    int thisClass = classRef("org/opensourcephysics/numerics/Expression"); //$NON-NLS-1$
+    int superClass = classRef(SUPER);
+    int init = utf8("<init>"), voidDesc = utf8("()V"), computeName = utf8("compute"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    int arrayDesc = utf8("([D)D"), scalarDesc = utf8(D_D), codeName = utf8("Code"); //$NON-NLS-1$ //$NON-NLS-2$
+    int superInit = methodRef(SUPER, "<init>", "()V"); //$NON-NLS-1$ //$NON-NLS-2$
+    ByteArrayOutputStream methods = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(methods);
+    // constructor
+    length = 0;
+    emit(ALOAD_0);
+    emit(INVOKESPECIAL);
+    emit2(superInit);
+    emit(RETURN);
+    writeMethod(out, 0x0001, init, voidDesc, codeName, 1, 1);
+    // compute(double[] v)
+    if(!generate(false)) {
+      return null;
+    }
+    writeMethod(out, 0x0004, computeName, arrayDesc, codeName, 2*maxDepth+4, 2+2*(codes.length-1));
+    // compute(double x)
+    if(variableCount==1) {
+      if(!generate(true)) {
+        return null;
+      }
+    } else {
+      length = 0;
+      emit(DCONST_0);
+      emit(DRETURN);
+      maxDepth = 1;
+    }
+    writeMethod(out, 0x0004, computeName, scalarDesc, codeName, 2*maxDepth+4, 3+2*(codes.length-1));
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream file = new DataOutputStream(bytes);
+    file.writeInt(0xCAFEBABE);
+    file.writeShort(0);  // minor version
+    file.writeShort(49); // major version, before stack map frames
+    file.writeShort(poolCount);
+    pool.writeTo(file);
+    file.writeShort(0x0001|0x0010|0x0020); // public final super
+    file.writeShort(thisClass);
+    file.writeShort(superClass);
+    file.writeShort(0); // interfaces
+    file.writeShort(0); // fields
+    file.writeShort(3); // methods
+    methods.writeTo(file);
+    file.writeShort(0); // attributes
+    return bytes.toByteArray();
+  }
+
+  private void writeMethod(DataOutputStream out, int access, int name, int desc, int codeName, int maxStack, int maxLocals)
+      throws IOException {
+    out.writeShort(access);
+    out.writeShort(name);
+    out.writeShort(desc);
+    out.writeShort(1);
+    out.writeShort(codeName);
+    out.writeInt(12+length);
+    out.writeShort(maxStack);
+    out.writeShort(maxLocals);
+    out.writeInt(length);
+    out.write(code, 0, length);
+    out.writeShort(0); // exception table
+    out.writeShort(0); // attributes
+  }
+
+  /**
+   * Generates the body of a compute method.
+   *
+   * @param scalar true if the single variable is the double argument, false for an array
+   * @return false if the code cannot be compiled
+   */
+  private boolean generate(boolean scalar) {
+    length = 0;
+    maxDepth = 0;
+    int numberIndex = 0;
+    int firstRef = scalar ? 3 : 2; // the local variable of the first reference
+    for(int k = 0; k<codes.length; k++) {
+      String s = codes[k];
+      int n = s.length();
+      int[] offset = new int[n+1];  // the bytecode offset of every postfix position
+      int[] entryDepth = new int[n+1];
+      Arrays.fill(entryDepth, -1);
+      ArrayList<int[]> branches = new ArrayList<int[]>(); // the bytecode offset and the destination
+      depth = 0;
+      boolean reachable = true;
+      int pc = 0;
+      while(pc<n) {
+        if(!reachable) { // the else part of if(,,), reached by the branch of the condition
+          if(entryDepth[pc]<0) {
+            return false;
+          }
+          depth = entryDepth[pc];
+          reachable = true;
+        }
+        offset[pc] = length;
+        char c = s.charAt(pc++);
+        switch(c) {
+           case '+' :
+             binary(DADD);
+             break;
+           case '-' :
+             binary(DSUB);
+             break;
+           case '*' :
+             binary(DMUL);
+             break;
+           case '/' :
+             call(SUPER, "div", DD_D, 2); //$NON-NLS-1$
+             break;
+           case '^' :
+             call(MATH, "pow", DD_D, 2); //$NON-NLS-1$
+             break;
+           case '_' :
+             emit(DNEG);
+             break;
+           case SuryonoParser.JUMP_CODE :
+           case SuryonoParser.IF_CODE : {
+             if(pc>=n) {
+               return false;
+             }
+             int destination = pc+s.charAt(pc);
+             pc++;
+             if(destination>n) {
+               return false;
+             }
+             if(c==SuryonoParser.IF_CODE) {
+               pop(1);
+               emit(DCONST_0);
+               emit(DCMPL);
+               branches.add(new int[] {length, destination});
+               emit(IFEQ);
+               emit2(0);
+               if((entryDepth[destination]>=0)&&(entryDepth[destination]!=depth)) {
+                 return false;
+               }
+               entryDepth[destination] = depth;
+             } else {
+               branches.add(new int[] {length, destination});
+               emit(GOTO);
+               emit2(0);
+               if((entryDepth[destination]>=0)&&(entryDepth[destination]!=depth)) {
+                 return false;
+               }
+               entryDepth[destination] = depth;
+               reachable = false;
+             }
+             break;
+           }
+           case SuryonoParser.LESS_THAN :
+             call(SUPER, "lt", DD_D, 2); //$NON-NLS-1$
+             break;
+           case SuryonoParser.GREATER_THAN :
+             call(SUPER, "gt", DD_D, 2); //$NON-NLS-1$
+             break;
+           case SuryonoParser.LESS_EQUAL :
+             call(SUPER, "le", DD_D, 2); //$NON-NLS-1$
+             break;
+           case SuryonoParser.GREATER_EQUAL :
+             call(SUPER, "ge", DD_D, 2); //$NON-NLS-1$
+             break;
+           case SuryonoParser.EQUAL :
+             call(SUPER, "eq", DD_D, 2); //$NON-NLS-1$
+             break;
+           case SuryonoParser.NOT_EQUAL :
+             call(SUPER, "ne", DD_D, 2); //$NON-NLS-1$
+             break;
+           case SuryonoParser.ENDIF :
+             break;
+           case SuryonoParser.AND_CODE :
+             call(SUPER, "and", DD_D, 2); //$NON-NLS-1$
+             break;
+           case SuryonoParser.OR_CODE :
+             call(SUPER, "or", DD_D, 2); //$NON-NLS-1$
+             break;
+           case SuryonoParser.NOT_CODE :
+             call(SUPER, "not", D_D, 1); //$NON-NLS-1$
+             break;
+           case SuryonoParser.NUMERIC :
+             if(numberIndex>=number.length) {
+               return false;
+             }
+             constant(number[numberIndex++]);
+             break;
+           case SuryonoParser.PI_CODE :
+             constant(Math.PI);
+             break;
+           case SuryonoParser.E_CODE :
+             constant(Math.E);
+             break;
+           default :
+             if(c>=SuryonoParser.REF_OFFSET) {
+               int ref = c-SuryonoParser.REF_OFFSET;
+               if(ref>=k) { // not yet evaluated
+                 return false;
+               }
+               emit(DLOAD);
+               emit(firstRef+2*ref);
+               push();
+             } else if(c>=SuryonoParser.VAR_OFFSET) {
+               int var = c-SuryonoParser.VAR_OFFSET;
+               if(var>=variableCount) {
+                 return false;
+               }
+               if(scalar) {
+                 emit(DLOAD);
+                 emit(1);
+               } else {
+                 emit(ALOAD_1);
+                 if(var<128) {
+                   emit(BIPUSH);
+                   emit(var);
+                 } else {
+                   emit(SIPUSH);
+                   emit2(var);
+                 }
+                 emit(DALOAD);
+               }
+               push();
+             } else if(c>=SuryonoParser.EXT_FUNC_OFFSET) {
+               if(!extFunction(c-SuryonoParser.EXT_FUNC_OFFSET)) {
+                 return false;
+               }
+             } else if(c>=SuryonoParser.FUNC_OFFSET) {
+               if(!function(c-SuryonoParser.FUNC_OFFSET)) {
+                 return false;
+               }
+             } else {
+               return false;
+             }
+        }
+        if((depth<0)||(maxDepth>SuryonoParser.STACK_SIZE)) {
+          return false;
+        }
+      }
+      offset[n] = length;
+      if(!reachable&&(entryDepth[n]>=0)) {
+        depth = entryDepth[n];
+      }
+      if(depth!=1) {
+        return false;
+      }
+      // resolve the branches; every destination starts an operation or is the end
+      for(int[] b : branches) {
+        int relative = offset[b[1]]-b[0];
+        if((relative<Short.MIN_VALUE)||(relative>Short.MAX_VALUE)) {
+          return false;
+        }
+        code[b[0]+1] = (byte) (relative>>8);
+        code[b[0]+2] = (byte) relative;
+      }
+      if(k<codes.length-1) { // a reference
+        emit(DSTORE);
+        emit(firstRef+2*k);
+        if(firstRef+2*k>255) {
+          return false;
+        }
+      } else {
+        call(SUPER, "result", D_D, 1); //$NON-NLS-1$
+        emit(DRETURN);
+      }
+    }
+    return true;
+  }
+
+  private boolean function(int f) {
+    switch(f) {
+       case 0 :
+         return angle("sin"); //$NON-NLS-1$
+       case 1 :
+         return angle("cos"); //$NON-NLS-1$
+       case 2 :
+         return angle("tan"); //$NON-NLS-1$
+       case 3 :
+         call(MATH, "log", D_D, 1); //$NON-NLS-1$
+         return true;
+       case 4 :
+         call(MATH, "log", D_D, 1); //$NON-NLS-1$
+         constant(SuryonoParser.LOG10);
+         binary(DDIV);
+         return true;
+       case 5 :
+         call(MATH, "abs", D_D, 1); //$NON-NLS-1$
+         return true;
+       case 6 :
+         call(MATH, "rint", D_D, 1); //$NON-NLS-1$
+         return true;
+       case 7 :
+         call(SUPER, "frac", D_D, 1); //$NON-NLS-1$
+         return true;
+       case 8 :
+         return inverseAngle("asin"); //$NON-NLS-1$
+       case 9 :
+         return inverseAngle("acos"); //$NON-NLS-1$
+       case 10 :
+         return inverseAngle("atan"); //$NON-NLS-1$
+       case 11 :
+         call(SUPER, "sinh", D_D, 1); //$NON-NLS-1$
+         return true;
+       case 12 :
+         call(SUPER, "cosh", D_D, 1); //$NON-NLS-1$
+         return true;
+       case 13 :
+         call(SUPER, "tanh", D_D, 1); //$NON-NLS-1$
+         return true;
+       case 14 :
+         call(SUPER, "asinh", D_D, 1); //$NON-NLS-1$
+         return true;
+       case 15 :
+         call(SUPER, "acosh", D_D, 1); //$NON-NLS-1$
+         return true;
+       case 16 :
+         call(SUPER, "atanh", D_D, 1); //$NON-NLS-1$
+         return true;
+       case 17 :
+         call(MATH, "ceil", D_D, 1); //$NON-NLS-1$
+         return true;
+       case 18 :
+         call(MATH, "floor", D_D, 1); //$NON-NLS-1$
+         return true;
+       case 19 :
+         call(SUPER, "round", D_D, 1); //$NON-NLS-1$
+         return true;
+       case 20 :
+         call(MATH, "exp", D_D, 1); //$NON-NLS-1$
+         return true;
+       case 21 :
+         emit(DUP2);
+         emit(DMUL);
+         return true;
+       case 22 :
+         call(MATH, "sqrt", D_D, 1); //$NON-NLS-1$
+         return true;
+       case 23 :
+         call(SUPER, "sign", D_D, 1); //$NON-NLS-1$
+         return true;
+       case 24 :
+         call(SUPER, "step", D_D, 1); //$NON-NLS-1$
+         return true;
+       case 25 :
+         call(SUPER, "random", D_D, 1); //$NON-NLS-1$
+         return true;
+       default :
+         return false;
+    }
+  }
+
+  private boolean extFunction(int f) {
+    switch(f) {
+       case 0 :
+         call(MATH, "min", DD_D, 2); //$NON-NLS-1$
+         return true;
+       case 1 :
+         call(MATH, "max", DD_D, 2); //$NON-NLS-1$
+         return true;
+       case 2 :
+         call(MATH, "IEEEremainder", DD_D, 2); //$NON-NLS-1$
+         return true;
+       case 3 :
+         call(MATH, "atan2", DD_D, 2); //$NON-NLS-1$
+         return true;
+       default :
+         return false;
+    }
+  }
+
+  private boolean angle(String name) {
+    if(!radian) {
+      constant(SuryonoParser.DEGTORAD);
+      binary(DMUL);
+    }
+    call(MATH, name, D_D, 1);
+    return true;
+  }
+
+  private boolean inverseAngle(String name) {
+    call(MATH, name, D_D, 1);
+    if(!radian) {
+      constant(SuryonoParser.DEGTORAD);
+      binary(DDIV);
+    }
+    return true;
+  }
+
+  // code emission
+
+  private void emit(int b) {
+    if(length==code.length) {
+      byte[] c = new byte[2*length];
+      System.arraycopy(code, 0, c, 0, length);
+      code = c;
+    }
+    code[length++] = (byte) b;
+  }
+
+  private void emit2(int s) {
+    emit(s>>8);
+    emit(s);
+  }
+
+  private void push() {
+    depth++;
+    maxDepth = Math.max(maxDepth, depth);
+  }
+
+  private void pop(int n) {
+    depth -= n;
+  }
+
+  private void binary(int op) {
+    emit(op);
+    pop(1);
+  }
+
+  private void call(String owner, String name, String desc, int args) {
+    emit(INVOKESTATIC);
+    emit2(methodRef(owner, name, desc));
+    pop(args-1);
+  }
+
+  private void constant(double value) {
+    if(Double.doubleToRawLongBits(value)==0L) {
+      emit(DCONST_0);
+    } else if(value==1.0) {
+      emit(DCONST_1);
+    } else {
+      emit(LDC2_W);
+      emit2(doubleConst(value));
+    }
+    push();
+  }
+
+  // constant pool
+
+  private int utf8(String s) {
+    Integer index = poolIndex.get("U"+s); //$NON-NLS-1$
+    if(index==null) {
+      try {
+        poolData.writeByte(1);
+        poolData.writeUTF(s);
+      } catch(IOException ex) {
+        throw new IllegalStateException(ex);
+      }
+      index = poolCount++;
+      poolIndex.put("U"+s, index); //$NON-NLS-1$
+    }
+    return index;
+  }
+
+  private int classRef(String name) {
+    int nameIndex = utf8(name);
+    return entry("C"+name, 7, nameIndex, -1); //$NON-NLS-1$
+  }
+
+  private int methodRef(String owner, String name, String desc) {
+    int ownerIndex = classRef(owner);
+    int nameType = entry("N"+name+desc, 12, utf8(name), utf8(desc)); //$NON-NLS-1$
+    return entry("M"+owner+"."+name+desc, 10, ownerIndex, nameType); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  private int entry(String key, int tag, int a, int b) {
+    Integer index = poolIndex.get(key);
+    if(index==null) {
+      try {
+        poolData.writeByte(tag);
+        poolData.writeShort(a);
+        if(b>=0) {
+          poolData.writeShort(b);
+        }
+      } catch(IOException ex) {
+        throw new IllegalStateException(ex);
+      }
+      index = poolCount++;
+      poolIndex.put(key, index);
+    }
+    return index;
+  }
+
+  private int doubleConst(double value) {
+    long bits = Double.doubleToRawLongBits(value);
+    Integer index = poolIndex.get("D"+bits); //$NON-NLS-1$
+    if(index==null) {
+      try {
+        poolData.writeByte(6);
+        poolData.writeLong(bits);
+      } catch(IOException ex) {
+        throw new IllegalStateException(ex);
+      }
+      index = poolCount;
+      poolCount += 2; // a double takes two entries
+      poolIndex.put("D"+bits, index); //$NON-NLS-1$
+    }
+    return index;
+  }
+
+  /**
+   * Loader defines one compiled expression so that the class can be unloaded with it.
+   */
+  private static class Loader extends ClassLoader {
+    Loader() {
+      super(CompiledExpression.class.getClassLoader());
+    }
+
+    Class<?> define(String name, byte[] b) {
+      return defineClass(name, b, 0, b.length);
+    }
+
+  }
+
+}
+
+
+/*
+ * Open Source Physics software is free software; you can redistribute
+ * it and/or modify it under the terms of the GNU General Public License (GPL) as
+ * published by the Free Software Foundation; either version 2 of the License,
+ * or(at your option) any later version.
+
+ * Code that uses any portion of the code in the org.opensourcephysics package
+ * or any subpackage (subdirectory) of this package must must also be be released
+ * under the GNU GPL license.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston MA 02111-1307 USA
+ * or view the license online at http://www.gnu.org/copyleft/gpl.html
+ *
+ * Copyright (c) 2007  The Open Source Physics project
+ *                     http://www.opensourcephysics.org
+ */
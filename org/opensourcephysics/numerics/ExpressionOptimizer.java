@@ -0,0 +1,500 @@
+/*
+ * Open Source Physics software is free software as described near the bottom of this code file.
+ *
+ * For additional information and documentation on Open Source Physics please see:
+ * <http://www.opensourcephysics.org/>
+ */
+
+package org.opensourcephysics.numerics;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * ExpressionOptimizer rewrites the postfix code of a SuryonoParser into equivalent code
+ * that is cheaper to evaluate.  The code is decoded into expression trees which are
+ * simplified and encoded again:
+ *
+ * - operations on constants are evaluated once (constant folding),
+ * - if(,,) with a constant condition is replaced by the part that is evaluated,
+ * - powers with the exponents 0, 1 and 2 become 1, the base and sqr(base),
+ * - a subexpression that is evaluated more than once becomes a reference that is
+ *   evaluated once (common subexpression elimination).
+ *
+ * Folding uses the evaluator of the parser, so folded constants have the values the
+ * interpreter would compute.  Operations are not reordered because that would change the
+ * rounding, so 2*pi*a is folded but a*2*pi is not.  Subexpressions inside the parts of
+ * if(,,) are not moved out of them, and random() is never folded or shared.
+ */
+class ExpressionOptimizer {
+  private static final char HOISTED = (char) 0; // a reference to a common subexpression
+  private static final char SQR = (char) (SuryonoParser.FUNC_OFFSET+21);
+  private static final char RANDOM = (char) (SuryonoParser.FUNC_OFFSET+25);
+  private static final int MIN_COST = 3;        // the cost of a subexpression worth a reference
+  private final double[] number;
+  private final boolean radian;
+  private int numberIndex;
+  private final ArrayList<Double> constants = new ArrayList<Double>();
+
+  /**
+   * Constructs an optimizer.
+   *
+   * @param number the numeric constants in the order they appear in the code
+   * @param radian true if angles are in radians
+   */
+  ExpressionOptimizer(double[] number, boolean radian) {
+    this.number = number;
+    this.radian = radian;
+  }
+
+  /**
+   * Optimizes postfix code.
+   *
+   * @param codes the postfix code of the references in evaluation order, then of the function
+   * @return the optimized codes in the same form, or null if the code is not understood
+   */
+  String[] optimize(String[] codes) {
+    numberIndex = 0;
+    constants.clear();
+    Node[] trees = new Node[codes.length];
+    for(int k = 0; k<codes.length; k++) {
+      trees[k] = decode(codes[k], 0, codes[k].length(), k);
+      if(trees[k]==null) {
+        return null;
+      }
+    }
+    ArrayList<String> result = new ArrayList<String>();
+    int[] refIndex = new int[codes.length]; // the new index of every reference
+    for(int k = 0; k<codes.length; k++) {
+      ArrayList<Node> units = new ArrayList<Node>();
+      units.add(simplify(trees[k]));
+      eliminateCommon(units);
+      // the shared subexpressions become references evaluated before the code
+      int[] unitRef = new int[units.size()];
+      Arrays.fill(unitRef, -1);
+      for(int u = 1; u<units.size(); u++) {
+        emitUnit(units, u, unitRef, refIndex, result);
+      }
+      refIndex[k] = result.size();
+      StringBuilder code = new StringBuilder();
+      emit(units.get(0), code, unitRef, refIndex);
+      result.add(code.toString());
+    }
+    return result.toArray(new String[result.size()]);
+  }
+
+  /**
+   * Gets the numeric constants of the optimized code.
+   *
+   * @return the constants in the order they appear in the code
+   */
+  double[] getConstants() {
+    double[] c = new double[constants.size()];
+    for(int i = 0; i<c.length; i++) {
+      c[i] = constants.get(i);
+    }
+    return c;
+  }
+
+  //------------------------------------------------------------------------
+  // Decoding
+
+  /**
+   * Decodes the postfix code between from and to into a tree.
+   *
+   * @return the tree or null if the code is not a single expression
+   */
+  private Node decode(String s, int from, int to, int k) {
+    ArrayList<Node> stack = new ArrayList<Node>();
+    int pc = from;
+    while(pc<to) {
+      char c = s.charAt(pc++);
+      if(c==SuryonoParser.IF_CODE) {
+        // displacement, true part, jump, displacement, false part
+        if(stack.isEmpty()||(pc>=to)) {
+          return null;
+        }
+        int jump = pc+s.charAt(pc)-2;
+        if((jump<=pc)||(jump+1>=to)||(s.charAt(jump)!=SuryonoParser.JUMP_CODE)) {
+          return null;
+        }
+        int end = jump+1+s.charAt(jump+1);
+        if(end>to) {
+          return null;
+        }
+        Node condition = stack.remove(stack.size()-1);
+        Node t = decode(s, pc+1, jump, k);
+        Node f = (t==null) ? null : decode(s, jump+2, end, k);
+        if(f==null) {
+          return null;
+        }
+        stack.add(new Node(SuryonoParser.IF_CODE, new Node[] {condition, t, f}));
+        pc = end;
+      } else if(c==SuryonoParser.ENDIF) {
+        continue;
+      } else if(c==SuryonoParser.NUMERIC) {
+        if(numberIndex>=number.length) {
+          return null;
+        }
+        stack.add(new Node(number[numberIndex++]));
+      } else if(c==SuryonoParser.PI_CODE) {
+        stack.add(new Node(Math.PI));
+      } else if(c==SuryonoParser.E_CODE) {
+        stack.add(new Node(Math.E));
+      } else {
+        int n = arity(c);
+        if((n<0)||(stack.size()<n)||((c>=SuryonoParser.REF_OFFSET)&&(c-SuryonoParser.REF_OFFSET>=k))) {
+          return null;
+        }
+        Node[] args = null;
+        if(n>0) {
+          args = new Node[n];
+          for(int i = n-1; i>=0; i--) {
+            args[i] = stack.remove(stack.size()-1);
+          }
+        }
+        stack.add(new Node(c, args));
+      }
+    }
+    return(stack.size()==1) ? stack.get(0) : null;
+  }
+
+  /**
+   * Gets the number of operands of a postfix operation.
+   *
+   * @return the number or -1 if the code is not an operation
+   */
+  private static int arity(char c) {
+    switch(c) {
+       case '+' :
+       case '-' :
+       case '*' :
+       case '/' :
+       case '^' :
+       case SuryonoParser.LESS_THAN :
+       case SuryonoParser.GREATER_THAN :
+       case SuryonoParser.LESS_EQUAL :
+       case SuryonoParser.GREATER_EQUAL :
+       case SuryonoParser.NOT_EQUAL :
+       case SuryonoParser.EQUAL :
+       case SuryonoParser.AND_CODE :
+       case SuryonoParser.OR_CODE :
+         return 2;
+       case '_' :
+       case SuryonoParser.NOT_CODE :
+         return 1;
+    }
+    if(c>=SuryonoParser.VAR_OFFSET) { // variables and references
+      return 0;
+    } else if(c>=SuryonoParser.EXT_FUNC_OFFSET) {
+      return(c<SuryonoParser.EXT_FUNC_OFFSET+SuryonoParser.NO_EXT_FUNCS) ? 2 : -1;
+    } else if(c>=SuryonoParser.FUNC_OFFSET) {
+      return 1;
+    }
+    return -1;
+  }
+
+  //------------------------------------------------------------------------
+  // Simplification
+
+  /**
+   * Folds constants, removes dead parts of if(,,) and reduces powers.
+   */
+  private Node simplify(Node node) {
+    if(node.args==null) {
+      return node;
+    }
+    Node[] args = new Node[node.args.length];
+    boolean constant = true;
+    for(int i = 0; i<args.length; i++) {
+      args[i] = simplify(node.args[i]);
+      constant = constant&&args[i].isConstant();
+    }
+    if(node.code==SuryonoParser.IF_CODE) {
+      if(args[0].isConstant()) { // the false part is only evaluated for a zero condition
+        return(args[0].value==0.0) ? args[2] : args[1];
+      }
+      return new Node(node.code, args);
+    }
+    Node result = new Node(node.code, args);
+    if(constant&&(node.code!=RANDOM)) {
+      return fold(result);
+    }
+    if((node.code=='^')&&args[1].isConstant()) {
+      return power(result, args[0], args[1].value);
+    }
+    return result;
+  }
+
+  /**
+   * Evaluates an operation on constants with the evaluator of the parser.
+   */
+  private Node fold(Node node) {
+    StringBuilder code = new StringBuilder();
+    double[] values = new double[node.args.length];
+    for(int i = 0; i<values.length; i++) {
+      code.append(SuryonoParser.NUMERIC);
+      values[i] = node.args[i].value;
+    }
+    code.append(node.code);
+    SuryonoParser.Context context = new SuryonoParser.Context();
+    double value = SuryonoParser.evaluateSubFunction(code.toString(), values, radian, context);
+    return(context.error==SuryonoParser.NO_ERROR) ? new Node(value) : node;
+  }
+
+  /**
+   * Replaces base^exponent for the exponents whose Math.pow value is exact.  Products for
+   * larger exponents round differently from Math.pow, so they are left as powers.
+   */
+  private static Node power(Node node, Node base, double exponent) {
+    if(exponent==0) { // Math.pow(x, 0) is 1 for every x
+      return new Node(1.0);
+    } else if(exponent==1) {
+      return base;
+    } else if(exponent==2) {
+      return new Node(SQR, new Node[] {base});
+    }
+    return node;
+  }
+
+  //------------------------------------------------------------------------
+  // Common subexpressions
+
+  /**
+   * Moves subexpressions that are evaluated more than once into units of their own.  The
+   * first unit is the expression; HOISTED nodes refer to the other units by index.
+   */
+  private static void eliminateCommon(ArrayList<Node> units) {
+    while(true) {
+      HashMap<String, Integer> counts = new HashMap<String, Integer>();
+      HashMap<String, Node> samples = new HashMap<String, Node>();
+      for(Node unit : units) {
+        count(unit, counts, samples);
+      }
+      Node best = null;
+      for(String key : counts.keySet()) {
+        Node node = samples.get(key);
+        if((counts.get(key)>1)&&(cost(node)>=MIN_COST)&&((best==null)||(node.size()>best.size()))) {
+          best = node;
+        }
+      }
+      if(best==null) {
+        return;
+      }
+      Node ref = new Node(units.size());
+      for(int u = 0; u<units.size(); u++) {
+        units.set(u, replace(units.get(u), best.key(), ref));
+      }
+      units.add(best);
+    }
+  }
+
+  /**
+   * Counts the subexpressions that are always evaluated.
+   */
+  private static void count(Node node, HashMap<String, Integer> counts, HashMap<String, Node> samples) {
+    if(node.args==null) {
+      return;
+    }
+    if(node.code==SuryonoParser.IF_CODE) {
+      count(node.args[0], counts, samples);
+      return;
+    }
+    String key = node.key();
+    Integer n = counts.get(key);
+    counts.put(key, (n==null) ? 1 : n+1);
+    samples.put(key, node);
+    for(Node arg : node.args) {
+      count(arg, counts, samples);
+    }
+  }
+
+  /**
+   * Replaces every occurrence of a subexpression, also inside if(,,).
+   */
+  private static Node replace(Node node, String key, Node ref) {
+    if(node.args==null) {
+      return node;
+    }
+    if(node.key().equals(key)) {
+      return ref;
+    }
+    Node[] args = new Node[node.args.length];
+    boolean changed = false;
+    for(int i = 0; i<args.length; i++) {
+      args[i] = replace(node.args[i], key, ref);
+      changed = changed||(args[i]!=node.args[i]);
+    }
+    return changed ? new Node(node.code, args) : node;
+  }
+
+  /**
+   * Gets the cost of evaluating a subexpression, or a negative cost if it must not be shared.
+   */
+  private static int cost(Node node) {
+    if(node.args==null) {
+      return 0;
+    }
+    if(node.code==RANDOM) {
+      return -1000000;
+    }
+    int c = ((node.code>=SuryonoParser.FUNC_OFFSET)||(node.code=='/')||(node.code=='^')) ? MIN_COST : 1;
+    for(Node arg : node.args) {
+      c += cost(arg);
+    }
+    return c;
+  }
+
+  //------------------------------------------------------------------------
+  // Encoding
+
+  /**
+   * Encodes a unit after the units it refers to.
+   */
+  private void emitUnit(ArrayList<Node> units, int u, int[] unitRef, int[] refIndex, ArrayList<String> result) {
+    if(unitRef[u]>=0) {
+      return;
+    }
+    ArrayList<Node> nodes = new ArrayList<Node>();
+    nodes.add(units.get(u));
+    while(!nodes.isEmpty()) { // the units this unit refers to
+      Node node = nodes.remove(nodes.size()-1);
+      if(node.code==HOISTED) {
+        emitUnit(units, node.unit, unitRef, refIndex, result);
+      } else if(node.args!=null) {
+        for(Node arg : node.args) {
+          nodes.add(arg);
+        }
+      }
+    }
+    StringBuilder code = new StringBuilder();
+    emit(units.get(u), code, unitRef, refIndex);
+    unitRef[u] = result.size();
+    result.add(code.toString());
+  }
+
+  /**
+   * Encodes a tree as postfix code.
+   */
+  private void emit(Node node, StringBuilder out, int[] unitRef, int[] refIndex) {
+    if(node.isConstant()) {
+      out.append(SuryonoParser.NUMERIC);
+      constants.add(node.value);
+    } else if(node.code==HOISTED) {
+      out.append((char) (SuryonoParser.REF_OFFSET+unitRef[node.unit]));
+    } else if(node.code>=SuryonoParser.REF_OFFSET) {
+      out.append((char) (SuryonoParser.REF_OFFSET+refIndex[node.code-SuryonoParser.REF_OFFSET]));
+    } else if(node.code==SuryonoParser.IF_CODE) {
+      emit(node.args[0], out, unitRef, refIndex);
+      StringBuilder t = new StringBuilder();
+      emit(node.args[1], t, unitRef, refIndex);
+      t.append(SuryonoParser.JUMP_CODE);
+      StringBuilder f = new StringBuilder();
+      emit(node.args[2], f, unitRef, refIndex);
+      out.append(SuryonoParser.IF_CODE).append((char) (t.length()+2)).append(t);
+      out.append((char) (f.length()+1)).append(f);
+    } else {
+      if(node.args!=null) {
+        for(Node arg : node.args) {
+          emit(arg, out, unitRef, refIndex);
+        }
+      }
+      out.append(node.code);
+    }
+  }
+
+  /**
+   * Node is an operation with its operands, a constant, a variable or a reference.
+   */
+  private static final class Node {
+    final char code;   // the postfix code, NUMERIC for a constant
+    final Node[] args; // the operands, or the condition and the parts of if(,,)
+    final double value;
+    final int unit;    // the unit of a HOISTED reference
+    private String key;
+
+    Node(char code, Node[] args) {
+      this.code = code;
+      this.args = args;
+      value = 0;
+      unit = -1;
+    }
+
+    Node(double value) {
+      code = SuryonoParser.NUMERIC;
+      args = null;
+      this.value = value;
+      unit = -1;
+    }
+
+    Node(int unit) {
+      code = HOISTED;
+      args = null;
+      value = 0;
+      this.unit = unit;
+    }
+
+    boolean isConstant() {
+      return code==SuryonoParser.NUMERIC;
+    }
+
+    int size() {
+      int n = 1;
+      if(args!=null) {
+        for(Node arg : args) {
+          n += arg.size();
+        }
+      }
+      return n;
+    }
+
+    /**
+     * Gets a key that is equal for equal subexpressions.
+     */
+    String key() {
+      if(key==null) {
+        StringBuilder b = new StringBuilder();
+        b.append(code);
+        if(isConstant()) {
+          long bits = Double.doubleToLongBits(value);
+          b.append((char) (bits>>>48)).append((char) (bits>>>32)).append((char) (bits>>>16)).append((char) bits);
+        } else if(code==HOISTED) {
+          b.append((char) unit);
+        } else if(args!=null) { // the arity of every code is fixed
+          for(Node arg : args) {
+            b.append(arg.key());
+          }
+        }
+        key = b.toString();
+      }
+      return key;
+    }
+
+  }
+
+}
+
+
+/*
+ * Open Source Physics software is free software; you can redistribute
+ * it and/or modify it under the terms of the GNU General Public License (GPL) as
+ * published by the Free Software Foundation; either version 2 of the License,
+ * or(at your option) any later version.
+
+ * Code that uses any portion of the code in the org.opensourcephysics package
+ * or any subpackage (subdirectory) of this package must must also be be released
+ * under the GNU GPL license.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston MA 02111-1307 USA
+ * or view the license online at http://www.gnu.org/copyleft/gpl.html
+ *
+ * Copyright (c) 2007  The Open Source Physics project
+ *                     http://www.opensourcephysics.org
+ */
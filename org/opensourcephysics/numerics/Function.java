@@ -21,6 +21,27 @@ public interface Function {
    */
   public double evaluate(double x);
 
+  /**
+   * Evaluates the function at every element of x.  Implementations may override this
+   * method to evaluate an array faster than one point at a time.
+   *
+   * If the result array is null, a new array is allocated.  Otherwise the result array is used;
+   * it may be the x array itself.
+   *
+   * @param x the values of the variable
+   * @param result the array for the values f(x[i]) or null
+   * @return the result array
+   */
+  public default double[] evaluate(double[] x, double[] result) {
+    if(result==null) {
+      result = new double[x.length];
+    }
+    for(int i = 0; i<x.length; i++) {
+      result[i] = evaluate(x[i]);
+    }
+    return result;
+  }
+
 }
 
 /*
@@ -25,10 +25,16 @@
 
 */
 package org.opensourcephysics.numerics;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Class description
  *
+ * The finite difference Hessian may be evaluated in parallel on a fork-join pool.  The
+ * function must then be safe to evaluate concurrently from several threads.
+ *
 */
 public class HessianMinimize {
   int Iterations;
@@ -39,8 +45,25 @@ public class HessianMinimize {
   double[] xpm;
   double[] xmp;
   double[] xmm;
+  double[] fp; //memoized values at x[i]+dx[i]
+  double[] fm; //memoized values at x[i]-dx[i]
+  long evaluations, evaluationsSaved;
   private double rmsd_tmp, rmsd;
   private double[] xtmp;
+  private ForkJoinPool pool; //null if the Hessian is evaluated serially
+  //instrumentation
+  int termination;
+  private long directEvaluations; //evaluations made outside getHessian and getGradient
+  private MinimizerStatus status = new MinimizerStatus();
+  private ArrayList<MinimizerListener> listeners = new ArrayList<MinimizerListener>();
+  //cancellation: every run gets a generation number and cancel() marks the run to stop
+  private final Object runLock = new Object();
+  private long generation;          //the generation of the latest run
+  private long cancelledGeneration; //the generation to stop or 0 for none
+  private boolean running;
+  //box bounds and frozen parameters
+  private double[] lower, upper;
+  private boolean[] frozen;
 
   /*  Inputs
 
@@ -54,12 +77,49 @@ public class HessianMinimize {
 
   */
   public double minimize(MultiVarFunction Veq, double[] x, int max, double tol) {
+    if(((lower!=null)||(upper!=null)||(frozen!=null))&&!(Veq instanceof ConstrainedFunction)) {
+      //minimize the free parameters as an unconstrained function
+      ConstrainedFunction c = ConstrainedFunction.wrap(Veq, x, lower, upper, frozen);
+      double[] u = c.toInternal(x);
+      double err = 0;
+      if(u.length==0) { //every parameter is frozen
+        Iterations = 0;
+        termination = LevenbergMarquardt.CONVERGED_STEP;
+      } else {
+        err = minimize(c, u, max, tol);
+      }
+      c.toExternal(u, x);
+      return err;
+    }
+    synchronized(runLock) {
+      status.reset();
+      generation++;
+      running = true;
+      if(cancelledGeneration==generation) { //cancelled before it started
+        status.stopRequested = true;
+      }
+    }
+    try {
+      return minimizeFree(Veq, x, max, tol);
+    } finally {
+      synchronized(runLock) {
+        running = false;
+      }
+    }
+  }
+
+  /**
+   * Minimizes a function without bounds or frozen parameters.
+   */
+  private double minimizeFree(MultiVarFunction Veq, double[] x, int max, double tol) {
     int m = x.length;
     double[] xxn = new double[m];
     double[] D = new double[m];
     double[] dx = new double[m];
     xtmp = new double[m];
     System.arraycopy(x, 0, xtmp, 0, m);
+    long evaluations0 = evaluations;
+    directEvaluations = 1;
     rmsd_tmp = Veq.evaluate(x);
     rmsd = 0;
     crudeGuess(Veq, x);          //obtain a crude guess
@@ -73,11 +133,16 @@ public class HessianMinimize {
     //Use the Hessian method for an equation of several variables
     //start with a good guess.
     Iterations = 0;
-    while((err>tol*1.e-6)&&(relerr>tol*1.e-6)&&(Iterations<max)) {
+    while((err>tol*1.e-6)&&(relerr>tol*1.e-6)&&(Iterations<max)&&!status.stopRequested) {
       Iterations++;
-      LUPDecomposition lu = new LUPDecomposition(getHessian(Veq, x, D, dx));
+      long time = System.nanoTime();
+      getHessian(Veq, x, D, dx);
+      status.addDerivativeTime(System.nanoTime()-time);
+      time = System.nanoTime();
+      LUPDecomposition lu = new LUPDecomposition(H);
       // use the LUPDecomposition's solve method
       xxn = lu.solve(D);      //the corrections
+      status.addSolveTime(System.nanoTime()-time);
       for(int i = 0; i<m; i++) {
         xxn[i] = xxn[i]+x[i]; //new guesses
       }
@@ -92,8 +157,39 @@ public class HessianMinimize {
       }
       err = Math.sqrt(err);   //the error
       relerr = err/(relerr+tol);
+      if(!listeners.isEmpty()) { //the value is only needed by the listeners
+        status.value = Veq.evaluate(x);
+        directEvaluations++;
+        status.iteration = Iterations;
+        status.stepNorm = err;
+        status.accepted = true;
+        status.evaluations = directEvaluations+evaluations-evaluations0;
+        status.elapsedNanos = System.nanoTime()-status.startNanos;
+        for(int i = 0, n = listeners.size(); i<n; i++) {
+          listeners.get(i).iterationCompleted(status);
+        }
+        status.derivativeNanos = 0;
+        status.solveNanos = 0;
+      }
+    }
+    if(status.stopRequested) {
+      termination = LevenbergMarquardt.STOPPED;
+    } else if(err<=tol*1.e-6) {
+      termination = LevenbergMarquardt.CONVERGED_STEP;
+    } else if(relerr<=tol*1.e-6) {
+      termination = LevenbergMarquardt.CONVERGED_RELATIVE_STEP;
+    } else {
+      termination = LevenbergMarquardt.MAX_ITERATIONS;
     }
     check_rmsd(Veq, xtmp, x, m); //check if x is better, else keep old one
+    status.iteration = Iterations;
+    status.value = rmsd;
+    status.evaluations = directEvaluations+evaluations-evaluations0;
+    status.elapsedNanos = System.nanoTime()-status.startNanos;
+    status.terminationReason = termination;
+    for(int i = 0, n = listeners.size(); i<n; i++) {
+      listeners.get(i).minimizationCompleted(status);
+    }
     return err;
   }
 
@@ -105,6 +201,8 @@ public class HessianMinimize {
     xpm = new double[m];
     xmp = new double[m];
     xmm = new double[m];
+    fp = new double[m];
+    fm = new double[m];
   }
 
   void crudeGuess(MultiVarFunction Veq, double[] x) {
@@ -158,6 +256,7 @@ public class HessianMinimize {
         sp = Veq.evaluate(xp); //  Evaluate the sum.
         s0 = Veq.evaluate(x);
         sm = Veq.evaluate(xm);
+        directEvaluations += 3;
         //make the crude Newton-Raphson step next
         x[i] = x[i]-f*0.5*dx[i]*(sp-sm)/(sp-2.0*s0+sm);
         //As we move towards a minimum, we should decrease
@@ -174,6 +273,7 @@ public class HessianMinimize {
       System.arraycopy(xtmp, 0, xx, 0, mx);
     } else {
       rmsd = Veq.evaluate(xx);
+      directEvaluations++;
       if(rmsd<=rmsd_tmp) {
         rmsd_tmp = rmsd;
         System.arraycopy(xx, 0, xtmp, 0, mx);
@@ -188,6 +288,112 @@ public class HessianMinimize {
     return Iterations;
   }
 
+  /**
+   * Gets the reason the last minimization stopped.
+   *
+   * @return CONVERGED_STEP, CONVERGED_RELATIVE_STEP or MAX_ITERATIONS as defined by LevenbergMarquardt
+   */
+  public int getTerminationReason() {
+    return termination;
+  }
+
+  /**
+   * Gets the status of the last minimization.  The status is reused by the next minimization.
+   *
+   * @return the status
+   */
+  public MinimizerStatus getStatus() {
+    return status;
+  }
+
+  /**
+   * Cancels the running minimization from any thread.  The minimization stops after the
+   * current iteration with the termination reason STOPPED.  If no minimization is running,
+   * the next one to start is cancelled instead.  Later minimizations are not affected.
+   */
+  public void cancel() {
+    synchronized(runLock) {
+      if(running) {
+        cancelledGeneration = generation;
+        status.requestStop();
+      } else {
+        cancelledGeneration = generation+1;
+      }
+    }
+  }
+
+  /**
+   * Adds a listener that is notified after every iteration and when the minimization stops.
+   * The function is evaluated once more per iteration to report its value while a listener
+   * is attached.
+   *
+   * @param listener the listener
+   */
+  public void addMinimizerListener(MinimizerListener listener) {
+    if(!listeners.contains(listener)) {
+      listeners.add(listener);
+    }
+  }
+
+  /**
+   * Removes a listener.
+   *
+   * @param listener the listener
+   */
+  public void removeMinimizerListener(MinimizerListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Sets box bounds on the parameters.  Use infinite values for parameters without a bound.
+   *
+   * @param lower the lower bounds or null
+   * @param upper the upper bounds or null
+   * @see LevenbergMarquardt#setBounds(double[], double[])
+   */
+  public void setBounds(double[] lower, double[] upper) {
+    this.lower = (lower==null) ? null : lower.clone();
+    this.upper = (upper==null) ? null : upper.clone();
+  }
+
+  /**
+   * Freezes parameters at their initial values.
+   *
+   * @param frozen true for every frozen parameter, or null to free all parameters
+   */
+  public void setFrozen(boolean[] frozen) {
+    this.frozen = (frozen==null) ? null : frozen.clone();
+  }
+
+  /**
+   * Sets the parallel mode.  The stencil points of the Hessian are evaluated on the
+   * common fork-join pool if parallel is true.
+   *
+   * @param parallel boolean
+   */
+  public void setParallel(boolean parallel) {
+    pool = parallel ? ForkJoinPool.commonPool() : null;
+  }
+
+  /**
+   * Sets the pool used to evaluate the stencil points of the Hessian.
+   * A null pool evaluates the Hessian serially.
+   *
+   * @param pool ForkJoinPool
+   */
+  public void setPool(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * Gets the pool used to evaluate the Hessian.
+   *
+   * @return the pool or null if the Hessian is evaluated serially
+   */
+  public ForkJoinPool getPool() {
+    return pool;
+  }
+
   public double[][] getHessian(MultiVarFunction Veq, double[] x, double[] D, double[] dx) {
     /*
 
@@ -244,30 +450,65 @@ public class HessianMinimize {
           xmm - x[1],..,x[i]-dx[i],..., x[j]-dx[j],..., x[m]
 
     */
+    evaluations++;
+    evaluationsSaved--;
+    return getHessian(Veq, x, D, dx, Veq.evaluate(x));
+  }
+
+  /**
+   * Finds the Hessian H and the negative gradient D of a function whose value f0 at x
+   * is already known.
+   *
+   * The stencil points are memoized so that each distinct point is evaluated once:
+   * the base point is never evaluated and the single variable points x[i]+dx[i] and
+   * x[i]-dx[i] are shared by the diagonal of H and by D.
+   *
+   * @param Veq the function
+   * @param x the parameters
+   * @param D the negative gradient
+   * @param dx the size of the variations used in the derivatives
+   * @param f0 the value of the function at x
+   * @return the Hessian
+   */
+  public double[][] getHessian(MultiVarFunction Veq, double[] x, double[] D, double[] dx, double f0) {
     //The Hessian H is calculated by the finite difference method
     int m = x.length;
     if((xp==null)||(xp.length!=m)) {
       allocateArrays(m);
     }
-    //  Compute the Hessian:
+    if(pool!=null) {
+      pool.invoke(new StencilTask(Veq, x, dx, false, 0, 2*m, leafSize(2*m)));
+    } else {
+      for(int i = 0; i<m; i++) {
+        for(int k = 0; k<m; k++) { //reset the x's
+          xp[k] = x[k];
+          xm[k] = x[k];
+        }
+        xp[i] = x[i]+dx[i];      //change the ith one
+        xm[i] = x[i]-dx[i];
+        fp[i] = Veq.evaluate(xp);
+        fm[i] = Veq.evaluate(xm);
+      }
+    }
+    //  Compute the diagonal and D from the memoized points
+    //  note the D function is the negative of the partial derivative
     for(int i = 0; i<m; i++) {
-      for(int j = i; j<m; j++) {
-        if(i==j) {
-          for(int k = 0; k<m; k++) { //reset the x's
-            xp[k] = x[k];
-            xm[k] = x[k];
-          }
-          xp[i] = x[i]+dx[i];        //change the ith one
-          xm[i] = x[i]-dx[i];
-          H[i][i] = (Veq.evaluate(xp)-2.0*Veq.evaluate(x)+Veq.evaluate(xm))/(dx[i]*dx[i]);
-        } else {
+      H[i][i] = (fp[i]-2.0*f0+fm[i])/(dx[i]*dx[i]);
+      D[i] = -(fp[i]-fm[i])/(2.0*dx[i]);
+    }
+    //  Compute the off diagonal elements of the Hessian:
+    if(pool!=null) {
+      pool.invoke(new StencilTask(Veq, x, dx, true, 0, m*(m-1)/2, leafSize(m*(m-1)/2)));
+    } else {
+      for(int i = 0; i<m; i++) {
+        for(int j = i+1; j<m; j++) {
           for(int k = 0; k<m; k++) { //reset the x's
             xpp[k] = x[k];
             xpm[k] = x[k];
             xmp[k] = x[k];
             xmm[k] = x[k];
           }
-          xpp[i] = x[i]+dx[i];       //change the ith, jth ones
+          xpp[i] = x[i]+dx[i];     //change the ith, jth ones
           xpp[j] = x[j]+dx[j];
           xpm[i] = x[i]+dx[i];
           xpm[j] = x[j]-dx[j];
@@ -280,7 +521,27 @@ public class HessianMinimize {
         }
       }
     }
-    // note the D function is the negative of the partial derivative
+    //the unmemoized stencil needs 3m+2m(m-1)+2m evaluations
+    evaluations += 2*m+2*m*(m-1);
+    evaluationsSaved += 3*m;
+    return H;
+  }
+
+  /**
+   * Finds the negative gradient D of a function using central differences.
+   * This needs 2m evaluations instead of the 2m^2 of the full Hessian.
+   *
+   * @param Veq the function
+   * @param x the parameters
+   * @param D the negative gradient
+   * @param dx the size of the variations used in the derivatives
+   * @return the negative gradient
+   */
+  public double[] getGradient(MultiVarFunction Veq, double[] x, double[] D, double[] dx) {
+    int m = x.length;
+    if((xp==null)||(xp.length!=m)) {
+      allocateArrays(m);
+    }
     for(int i = 0; i<m; i++) {
       for(int k = 0; k<m; k++) { //reset the x's
         xp[k] = x[k];
@@ -290,7 +551,120 @@ public class HessianMinimize {
       xm[i] = x[i]-dx[i];
       D[i] = -(Veq.evaluate(xp)-Veq.evaluate(xm))/(2.0*dx[i]);
     }
-    return H;
+    evaluations += 2*m;
+    return D;
+  }
+
+  /**
+   * Gets the number of function evaluations made by getHessian and getGradient since the counters were reset.
+   *
+   * @return the number of evaluations
+   */
+  public long getEvaluations() {
+    return evaluations;
+  }
+
+  /**
+   * Gets the number of function evaluations that getHessian avoided by reusing memoized
+   * stencil points since the counters were reset.
+   *
+   * @return the number of evaluations saved
+   */
+  public long getEvaluationsSaved() {
+    return evaluationsSaved;
+  }
+
+  /**
+   * Resets the evaluation counters.
+   */
+  public void resetCounters() {
+    evaluations = 0;
+    evaluationsSaved = 0;
+  }
+
+  /**
+   * Gets the number of stencil points evaluated by a leaf task so that every worker
+   * of the pool gets about one leaf.
+   */
+  private int leafSize(int count) {
+    return Math.max(1, count/pool.getParallelism());
+  }
+
+  /**
+   * StencilTask evaluates a range of stencil points on the fork-join pool.
+   *
+   * If pairs is false the task evaluates the single variable points into fp and fm,
+   * with elements 0 to m-1 being x[i]+dx[i] and elements m to 2m-1 being x[i]-dx[i].
+   * Otherwise the task evaluates the off diagonal elements of the upper triangle of H
+   * stored row by row.  Ranges are split until they hold at most leafSize elements and
+   * each leaf uses its own scratch array so that tasks never share a perturbed parameter
+   * array.
+   */
+  private class StencilTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    MultiVarFunction Veq;
+    double[] x, dx;
+    boolean pairs;
+    int lo, hi, leafSize;
+
+    StencilTask(MultiVarFunction Veq, double[] x, double[] dx, boolean pairs, int lo, int hi, int leafSize) {
+      this.Veq = Veq;
+      this.x = x;
+      this.dx = dx;
+      this.pairs = pairs;
+      this.lo = lo;
+      this.hi = hi;
+      this.leafSize = leafSize;
+    }
+
+    protected void compute() {
+      if(hi-lo>leafSize) {
+        int mid = (lo+hi)>>>1;
+        invokeAll(new StencilTask(Veq, x, dx, pairs, lo, mid, leafSize), new StencilTask(Veq, x, dx, pairs, mid, hi, leafSize));
+        return;
+      }
+      int m = x.length;
+      double[] xa = x.clone();
+      if(!pairs) {
+        for(int t = lo; t<hi; t++) {
+          int i = t%m;
+          xa[i] = (t<m) ? x[i]+dx[i] : x[i]-dx[i];
+          if(t<m) {
+            fp[i] = Veq.evaluate(xa);
+          } else {
+            fm[i] = Veq.evaluate(xa);
+          }
+          xa[i] = x[i];
+        }
+        return;
+      }
+      int i = 0, k = lo; //find the row i and column j of element lo
+      while(k>=m-i-1) {
+        k -= m-i-1;
+        i++;
+      }
+      int j = i+1+k;
+      for(int t = lo; t<hi; t++) {
+        xa[i] = x[i]+dx[i];
+        xa[j] = x[j]+dx[j];
+        double fpp = Veq.evaluate(xa);
+        xa[j] = x[j]-dx[j];
+        double fpm = Veq.evaluate(xa);
+        xa[i] = x[i]-dx[i];
+        double fmm = Veq.evaluate(xa);
+        xa[j] = x[j]+dx[j];
+        double fmp = Veq.evaluate(xa);
+        H[i][j] = ((fpp-fpm)/(2.0*dx[j])-(fmp-fmm)/(2.0*dx[j]))/(2.0*dx[i]);
+        H[j][i] = H[i][j];
+        xa[i] = x[i]; //reset the x's
+        xa[j] = x[j];
+        if(++j==m) { //the next element starts the next row
+          i++;
+          j = i+1;
+        }
+      }
+    }
+
   }
 
 }
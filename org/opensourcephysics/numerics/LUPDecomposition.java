@@ -29,6 +29,11 @@ public class LUPDecomposition {
    */
   private int parity = 1;
 
+  /**
+   * Permutation array kept between decompositions so that it can be reused
+   */
+  private int[] permutationBuffer;
+
   /**
    * Constructor method
    * @param components double[][]
@@ -43,6 +48,39 @@ public class LUPDecomposition {
     initialize(components);
   }
 
+  /**
+   * Constructs a reusable decomposition of an n by n system.
+   *
+   * The system is set with setComponents.  The buffers are allocated once so that
+   * repeated decompositions and solutions of systems of the same size do not create garbage.
+   *
+   * @param n int the size of the system
+   */
+  public LUPDecomposition(int n) {
+    rows = new double[n][n];
+    permutationBuffer = new int[n];
+    parity = 0; // nothing to decompose until the components are set
+  }
+
+  /**
+   * Copies the components of a new system into this decomposition's buffers.
+   * The decomposition is done in place the next time it is needed.
+   *
+   * @param components double[][] an n by n matrix
+   * @throws IllegalArgumentException if the size of the system has changed
+   */
+  public void setComponents(double[][] components) throws IllegalArgumentException {
+    int n = rows.length;
+    if((components.length!=n)||(components[0].length!=n)) {
+      throw new IllegalArgumentException("Illegal system: a "+n+" by "+n+" matrix is required"); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+    for(int i = 0; i<n; i++) { // loop over the rows
+      System.arraycopy(components[i], 0, rows[i], 0, n);
+    }
+    permutation = null;
+    parity = 1;
+  }
+
   /**
    * @return double[]
    * @param xTilde double[]
@@ -62,7 +100,10 @@ public class LUPDecomposition {
 
   private void decompose() {
     int n = rows.length;
-    permutation = new int[n];
+    if((permutationBuffer==null)||(permutationBuffer.length!=n)) {
+      permutationBuffer = new int[n];
+    }
+    permutation = permutationBuffer;
     for(int i = 0; i<n; i++) {
       permutation[i] = i;
     }
@@ -216,6 +257,33 @@ public class LUPDecomposition {
     return decomposed() ? backwardSubstitution(forwardSubstitution(c)) : null;
   }
 
+  /**
+   * Solves the system without allocating arrays.
+   *
+   * @return double[] the answer or null if the system is singular
+   * @param c double[] the right hand side
+   * @param answer double[] the array that receives the solution; must not be c
+   */
+  public double[] solve(double[] c, double[] answer) {
+    if(!decomposed()) {
+      return null;
+    }
+    int n = rows.length;
+    for(int i = 0; i<n; i++) { // forward substitution
+      answer[i] = c[permutation[i]];
+      for(int j = 0; j<=i-1; j++) {
+        answer[i] -= rows[i][j]*answer[j];
+      }
+    }
+    for(int i = n-1; i>=0; i--) { // backward substitution in place
+      for(int j = i+1; j<n; j++) {
+        answer[i] -= rows[i][j]*answer[j];
+      }
+      answer[i] /= rows[i][i];
+    }
+    return answer;
+  }
+
   /**
    * @param i int
    * @param k int
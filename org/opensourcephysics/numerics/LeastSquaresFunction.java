@@ -0,0 +1,51 @@
+/*
+ * Open Source Physics software is free software as described near the bottom of this code file.
+ *
+ * For additional information and documentation on Open Source Physics please see:
+ * <http://www.opensourcephysics.org/>
+ */
+
+package org.opensourcephysics.numerics;
+
+/**
+ * LeastSquaresFunction defines a vector of residuals whose sum of squares is to be minimized.
+ *
+ * The vector function evaluates the residuals r[i](x) and the multivariable function
+ * evaluates the sum of the squared residuals.  Because both forms are available, a
+ * LeastSquaresFunction can be passed to any of the scalar minimizers as well as to the
+ * Gauss-Newton form of the LevenbergMarquardt minimizer.
+ */
+public interface LeastSquaresFunction extends MultiVarFunction, VectorFunction {
+  /**
+   * Gets the number of residuals returned by the vector function.
+   *
+   * @return int the number of residuals
+   */
+  public int getResidualCount();
+
+}
+
+
+/*
+ * Open Source Physics software is free software; you can redistribute
+ * it and/or modify it under the terms of the GNU General Public License (GPL) as
+ * published by the Free Software Foundation; either version 2 of the License,
+ * or(at your option) any later version.
+
+ * Code that uses any portion of the code in the org.opensourcephysics package
+ * or any subpackage (subdirectory) of this package must must also be be released
+ * under the GNU GPL license.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston MA 02111-1307 USA
+ * or view the license online at http://www.gnu.org/copyleft/gpl.html
+ *
+ * Copyright (c) 2007  The Open Source Physics project
+ *                     http://www.opensourcephysics.org
+ */
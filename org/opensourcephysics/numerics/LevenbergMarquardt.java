@@ -7,19 +7,86 @@
  */
 
 package org.opensourcephysics.numerics;
+import java.util.ArrayList;
 
 /**
  * LevenbergMarquardt performs a minimization of a nonlinear multivariable function using
  * the Levenberg-Marquardt algorithm.
  *
+ * A LeastSquaresFunction is minimized using the Gauss-Newton form of the algorithm
+ * with either an analytic or a finite difference Jacobian of the residuals.
+ *
  * @author J E Hasbun
  * @version 1.0
  */
 public class LevenbergMarquardt {
+  /** Termination reason: the step size fell below the tolerance. */
+  public static final int CONVERGED_STEP = 1;
+  /** Termination reason: the step size relative to the parameters fell below the tolerance. */
+  public static final int CONVERGED_RELATIVE_STEP = 2;
+  /** Termination reason: Lambda became too small to change. */
+  public static final int LAMBDA_UNDERFLOW = 3;
+  /** Termination reason: the maximum number of iterations was reached. */
+  public static final int MAX_ITERATIONS = 4;
+  /** Termination reason: the function is linear in its parameters and was solved exactly. */
+  public static final int LINEAR_SOLUTION = 5;
+  /** Termination reason: a stop was requested through the MinimizerStatus. */
+  public static final int STOPPED = 6;
+  /** Termination reason: the time budget was used up. */
+  public static final int TIME_BUDGET = 7;
+  /** Termination reason: the evaluation budget was used up. */
+  public static final int EVALUATION_BUDGET = 8;
+  /** Termination reason: the value changed too little over the stall window. */
+  public static final int STALLED = 9;
+  /** Damping: Lambda is added to the Hessian diagonal and changed by factors of 10. */
+  public static final int DAMPING_LEVENBERG = 0;
+  /** Damping: the Hessian diagonal is scaled by 1+Lambda and Lambda is changed by factors of 10. */
+  public static final int DAMPING_MARQUARDT = 1;
+  /** Damping: the Hessian diagonal is scaled by 1+Lambda and Lambda follows Nielsen's gain ratio rule. */
+  public static final int DAMPING_NIELSEN = 2;
   int Iterations;
+  int termination;
   double[][] H;
   private double rmsd_tmp, rmsd_tmp1, rmsd;
   private double[] xtmp, xtmp1;
+  private double[] xp, rp; //scratch arrays for the finite difference Jacobian
+  //workspace reused by successive fits with the same number of parameters and residuals
+  private double[][] Hgn, Hl, J;
+  private double[] xxn, D, dx, r, rnew;
+  private LUPDecomposition lu;
+  private CholeskyDecomposition cd;
+  private int damping = DAMPING_LEVENBERG;
+  private boolean cholesky;
+  private double nu; //Nielsen's growth factor for Lambda
+  //Broyden updates between full derivative evaluations
+  private int broydenRefresh;
+  private double poorStepRatio = 0.25;
+  private boolean detectLinear;
+  private int derivativeAge; //updates since the last full evaluation or -1 if one is needed
+  private double[] bs, by;
+  //instrumentation
+  private MinimizerStatus status = new MinimizerStatus();
+  //cancellation: every run gets a generation number and cancel() marks the run to stop
+  private final Object runLock = new Object();
+  private long generation;          //the generation of the latest run
+  private long cancelledGeneration; //the generation to stop or 0 for none
+  private boolean running;
+  private ArrayList<MinimizerListener> listeners = new ArrayList<MinimizerListener>();
+  private long evaluations, hessianEvaluations;
+  //budgets checked after every iteration, 0 for none
+  private long timeBudget, evaluationBudget; //nanoseconds and evaluations
+  private int stallWindow;
+  private double stallTolerance;
+  private double[] stallValues; //the values of the last stallWindow iterations
+  private int budgetStop;       //the termination reason of a budget stop or 0
+  private int residualCount; //of the last least-squares fit or 0 for a scalar function
+  //box bounds and frozen parameters
+  private double[] lower, upper;
+  private boolean[] frozen;
+  private ConstrainedFunction constraint; //of the last minimization or null
+  private SparseNormalEquations sparse; //of the last least-squares minimization if its Jacobian is sparse
+  private SparseNormalEquations sparseWorkspace; //reused while the Jacobian pattern stays the same
+  private double[] constrainedParameters; //the internal parameters found by the last minimization
   HessianMinimize hessianMinimize = new HessianMinimize();
 
   /*
@@ -35,14 +102,30 @@ public class LevenbergMarquardt {
    *
    */
   public double minimize(MultiVarFunction Veq, double[] x, int max, double tol) {
+    try {
+      return minimizeFunction(Veq, x, max, tol);
+    } finally {
+      endRun(); //also when the function throws, so that cancel() is not lost
+    }
+  }
+
+  private double minimizeFunction(MultiVarFunction Veq, double[] x, int max, double tol) {
+    if(!(Veq instanceof ConstrainedFunction)) {
+      constraint = null;
+      if((lower!=null)||(upper!=null)||(frozen!=null)) {
+        return minimizeConstrained(Veq, x, max, tol, false);
+      }
+    }
     int m = x.length;
-    H = new double[m][m];
-    double[] xxn = new double[m];
-    double[] D = new double[m];
-    double[] dx = new double[m];
-    xtmp = new double[m];
-    xtmp1 = new double[m];
+    if((xtmp==null)||(xtmp.length!=m)) {
+      allocateArrays(m);
+    }
+    startStatus();
+    H = null;
+    residualCount = 0;
+    sparse = null;
     rmsd_tmp = Veq.evaluate(x); //remember initial deviation
+    evaluations++;
     rmsd_tmp1 = rmsd_tmp;       //remembers current deviation
     System.arraycopy(x, 0, xtmp, 0, m);  //xtmp remembers incoming guess
     System.arraycopy(x, 0, xtmp1, 0, m); //xtmp1 remembers current better guess
@@ -53,21 +136,40 @@ public class LevenbergMarquardt {
     Lambda = 0.001;
     err = 9999.;
     relerr = 9999.;
+    nu = 2;
+    derivativeAge = -1;
+    boolean accepted = true;
     //Use the Levenberg-Marquardt alogorithm along with the modified Hessian
     //for an equation of several variables start with a reasonable guess.
     Iterations = 0;
-    while((err>tol*1.e-6)&&(relerr>tol*1.e-6)&&(Iterations<max)&&(Lambda>1e-9)) {
+    boolean verify = false; //true to check a stop with updated derivatives using full ones
+    while((((err>tol*1.e-6)&&(relerr>tol*1.e-6)&&(Lambda>1e-9))||verify)&&(Iterations<max)&&!status.stopRequested) {
       Iterations++;
+      verify = false;
       //The Levenberg-Marquardt trick, adds Lambda to the Hessian diagonals
       //We find the modified H and D for Veq. Here Lambda is a parameter to be changed.
       //Ref: K. Madsen, H. B. Nielsen, O. Tngleff, Methods for Non-Linear
-      H = hessianMinimize.getHessian(Veq, x, D, dx);
-      for(int i = 0; i<m; i++) {
-        H[i][i] = H[i][i]+Lambda;
+      //After a rejected step x has not moved so the cached H and D are reused.
+      long time = System.nanoTime();
+      if(derivativeAge<0) {
+        //rmsd_tmp1 is the function at x so the stencil does not evaluate it again
+        H = hessianMinimize.getHessian(Veq, x, D, dx, rmsd_tmp1);
+        derivativeAge = 0;
+      }
+      status.addDerivativeTime(System.nanoTime()-time);
+      time = System.nanoTime();
+      boolean solved = solveDamped(H, D, Lambda, xxn);
+      status.addSolveTime(System.nanoTime()-time);
+      if(!solved) { //singular so increase Lambda and try again
+        Lambda = updateLambda(Lambda, false, 0);
+        accepted = false;
+        if(derivativeAge>0) {
+          derivativeAge = -1;
+        }
+        fireIteration(Lambda, Double.NaN, false);
+        continue;
       }
-      LUPDecomposition lu = new LUPDecomposition(H);
-      // use the LUPDecomposition's solve method
-      xxn = lu.solve(D);      //the corrections
+      double predicted = predictedReduction(H, D, xxn);
       for(int i = 0; i<m; i++) {
         xxn[i] = xxn[i]+x[i]; //new guesses
       }
@@ -82,23 +184,621 @@ public class LevenbergMarquardt {
       }
       //The Levenberg-Marquardt change of Lambda process
       rmsd = Veq.evaluate(x);
-      if(rmsd<rmsd_tmp1) {
-        //remember better guess and decrease Lambda
-        Lambda = Lambda/10.;
+      evaluations++;
+      accepted = rmsd<rmsd_tmp1;
+      double rho = (rmsd_tmp1-rmsd)/predicted;
+      Lambda = updateLambda(Lambda, accepted, rho);
+      if(accepted&&useBroyden(rho)) {
+        //symmetric rank one update of H from the change in the gradient
+        for(int i = 0; i<m; i++) {
+          bs[i] = x[i]-xtmp1[i];
+          by[i] = D[i];
+        }
+        time = System.nanoTime();
+        hessianMinimize.getGradient(Veq, x, D, dx);
+        status.addDerivativeTime(System.nanoTime()-time);
+        for(int i = 0; i<m; i++) {
+          by[i] -= D[i]; //D is the negative gradient
+        }
+        symmetricRankOneUpdate(H, bs, by, xxn);
+        derivativeAge++;
+      } else if(accepted||(derivativeAge>0)) {
+        derivativeAge = -1; //x has moved or the updated H gave a poor step
+      }
+      if(accepted) {
+        //remember better guess
         rmsd_tmp1 = rmsd;
         System.arraycopy(x, 0, xtmp1, 0, m);
       } else {
-        //keep previous guess and increase Lambda
+        //keep previous guess
         System.arraycopy(xtmp1, 0, x, 0, m);
-        Lambda = 10.*Lambda;
       }
       err = Math.sqrt(err);   //the error
       relerr = err/(relerr+tol);
+      if((derivativeAge>0)&&!((err>tol*1.e-6)&&(relerr>tol*1.e-6)&&(Lambda>1e-9))) {
+        derivativeAge = -1;
+        verify = true;
+      }
+      fireIteration(Lambda, err, accepted);
     }
+    termination = status.stopRequested ? stopReason() : terminationReason(err, relerr, Lambda, tol);
     check_rmsd(Veq, xtmp, x, m); //check if x is better, else keep old one
+    fireCompleted();
+    return err;
+  }
+
+  /*
+   *  Inputs
+   *
+   *   f   - the residuals of m parameters whose sum of squares is minimized
+   *
+   *   x   - the array containing the guess to the solutions
+   *
+   *   max - the maximum iteration number
+   *
+   *   tol - the tolerance level
+   *
+   *  This is the Gauss-Newton form of the algorithm.  The Hessian and the gradient of the
+   *  sum of squares are built directly from the Jacobian of the residuals, H = 2 J^T J and
+   *  D = -2 J^T r, so an iteration costs one residual evaluation and one Jacobian evaluation
+   *  instead of the full finite difference stencil.  The Jacobian is only recomputed after
+   *  an accepted step.
+   */
+  public double minimize(LeastSquaresFunction f, double[] x, int max, double tol) {
+    try {
+      return minimizeResiduals(f, x, max, tol);
+    } finally {
+      endRun();
+    }
+  }
+
+  private double minimizeResiduals(LeastSquaresFunction f, double[] x, int max, double tol) {
+    if(!(f instanceof ConstrainedFunction)) {
+      constraint = null;
+      if((lower!=null)||(upper!=null)||(frozen!=null)) {
+        return minimizeConstrained(f, x, max, tol, true);
+      }
+    }
+    int m = x.length;
+    int n = f.getResidualCount();
+    if((xtmp==null)||(xtmp.length!=m)) {
+      allocateArrays(m);
+    }
+    if((r==null)||(r.length!=n)) {
+      r = new double[n];
+      rnew = new double[n];
+    }
+    sparse = null;
+    if((f instanceof SparseLeastSquaresFunction)&&!(f instanceof LinearLeastSquaresFunction)) {
+      if((sparseWorkspace==null)||!sparseWorkspace.matches((SparseLeastSquaresFunction) f, m)) {
+        sparseWorkspace = new SparseNormalEquations((SparseLeastSquaresFunction) f, m);
+      }
+      sparse = sparseWorkspace;
+    }
+    if(((sparse==null)||(f instanceof DifferentiableLeastSquaresFunction))
+       &&((J==null)||(J.length!=n)||(J[0].length!=m))) {
+      J = new double[n][m];
+    }
+    H = Hgn;
+    residualCount = n;
+    startStatus();
+    if(f instanceof LinearLeastSquaresFunction) { //solve in one pass
+      double[][] A = ((LinearLeastSquaresFunction) f).getDesignMatrix();
+      double[] solution = LinearLeastSquares.solve(A, ((LinearLeastSquaresFunction) f).getObservations());
+      System.arraycopy(solution, 0, xxn, 0, m);
+      getGaussNewtonHessian(A, H); //the Jacobian of the residuals is -A
+      return linearSolution(f, x);
+    }
+    if(detectLinear&&(sparse==null)) {
+      System.arraycopy(x, 0, xxn, 0, m);
+      boolean linear = LinearLeastSquares.fitIfLinear(f, xxn, 1.e-9, J);
+      evaluations += m+2; //the linearity test
+      if(linear) {
+        getGaussNewtonHessian(J, H);
+        return linearSolution(f, x);
+      }
+    }
+    f.evaluate(x, r);
+    evaluations++;
+    rmsd_tmp = sumOfSquares(r);          //remember initial deviation
+    rmsd_tmp1 = rmsd_tmp;                //remembers current deviation
+    System.arraycopy(x, 0, xtmp, 0, m);  //xtmp remembers incoming guess
+    System.arraycopy(x, 0, xtmp1, 0, m); //xtmp1 remembers current better guess
+    for(int i = 0; i<m; i++) {
+      dx[i] = (Math.abs(x[i])+1.0)/1e5; //step sizes for the finite differences
+    }
+    double err, relerr, Lambda;
+    Lambda = 0.001;
+    err = 9999.;
+    relerr = 9999.;
+    nu = 2;
+    derivativeAge = -1;
+    boolean accepted = true;
+    Iterations = 0;
+    boolean verify = false; //true to check a stop with updated derivatives using full ones
+    while((((err>tol*1.e-6)&&(relerr>tol*1.e-6)&&(Lambda>1e-9))||verify)&&(Iterations<max)&&!status.stopRequested) {
+      Iterations++;
+      verify = false;
+      long time = System.nanoTime();
+      if((derivativeAge<0)&&(sparse!=null)) { //x has moved so the sparse Jacobian must be rebuilt
+        getSparseJacobian(f, x, r, dx);
+        sparse.build(r, D);
+        derivativeAge = 0;
+      } else if(derivativeAge<0) { //x has moved so the Jacobian must be rebuilt
+        getJacobian(f, x, r, J, dx);
+        getNormalEquations(J, r, H, D);
+        derivativeAge = 0;
+      } else if(accepted) { //the Jacobian has been updated
+        getNormalEquations(J, r, H, D);
+      }
+      status.addDerivativeTime(System.nanoTime()-time);
+      time = System.nanoTime();
+      boolean solved = (sparse!=null) ? sparse.solve(Lambda, damping, D, xxn) : solveDamped(H, D, Lambda, xxn);
+      status.addSolveTime(System.nanoTime()-time);
+      if(!solved) { //singular so increase Lambda and try again
+        Lambda = updateLambda(Lambda, false, 0);
+        accepted = false;
+        if(derivativeAge>0) {
+          derivativeAge = -1;
+        }
+        fireIteration(Lambda, Double.NaN, false);
+        continue;
+      }
+      double predicted = (sparse!=null) ? sparse.predictedReduction(D, xxn) : predictedReduction(H, D, xxn);
+      for(int i = 0; i<m; i++) {
+        xxn[i] = xxn[i]+x[i]; //new guesses
+      }
+      err = (x[0]-xxn[0])*(x[0]-xxn[0]);
+      relerr = x[0]*x[0];
+      x[0] = xxn[0];
+      for(int i = 1; i<m; i++) {
+        err = err+(x[i]-xxn[i])*(x[i]-xxn[i]);
+        relerr = relerr+x[i]*x[i];
+        x[i] = xxn[i];        //copy to go back
+      }
+      //The Levenberg-Marquardt change of Lambda process
+      f.evaluate(x, rnew);
+      evaluations++;
+      rmsd = sumOfSquares(rnew);
+      accepted = rmsd<rmsd_tmp1;
+      double rho = (rmsd_tmp1-rmsd)/predicted;
+      Lambda = updateLambda(Lambda, accepted, rho);
+      if(accepted&&useBroyden(rho)) {
+        broydenUpdate(J, x, xtmp1, r, rnew);
+        derivativeAge++;
+      } else if(accepted||(derivativeAge>0)) {
+        derivativeAge = -1; //x has moved or the updated Jacobian gave a poor step
+      }
+      if(accepted) {
+        //remember better guess and residuals
+        rmsd_tmp1 = rmsd;
+        System.arraycopy(x, 0, xtmp1, 0, m);
+        double[] swap = r;
+        r = rnew;
+        rnew = swap;
+      } else {
+        //keep previous guess
+        System.arraycopy(xtmp1, 0, x, 0, m);
+      }
+      err = Math.sqrt(err);   //the error
+      relerr = err/(relerr+tol);
+      if((derivativeAge>0)&&!((err>tol*1.e-6)&&(relerr>tol*1.e-6)&&(Lambda>1e-9))) {
+        derivativeAge = -1;
+        verify = true;
+      }
+      fireIteration(Lambda, err, accepted);
+    }
+    termination = status.stopRequested ? stopReason() : terminationReason(err, relerr, Lambda, tol);
+    check_rmsd(f, xtmp, x, m); //check if x is better, else keep old one
+    fireCompleted();
+    return err;
+  }
+
+  /**
+   * Minimizes a function with bounds or frozen parameters as an unconstrained function of
+   * the free parameters.
+   *
+   * @see ConstrainedFunction
+   */
+  private double minimizeConstrained(MultiVarFunction f, double[] x, int max, double tol, boolean leastSquares) {
+    ConstrainedFunction c = ConstrainedFunction.wrap(f, x, lower, upper, frozen);
+    double[] u = c.toInternal(x);
+    c.toExternal(u, x); //the starting point inside the box
+    double err = 0;
+    if(u.length==0) { //every parameter is frozen
+      startStatus();
+      H = null;
+      sparse = null;
+      rmsd = f.evaluate(x);
+      evaluations++;
+      Iterations = 0;
+      termination = CONVERGED_STEP;
+      fireCompleted();
+    } else if(leastSquares) {
+      err = minimize((LeastSquaresFunction) c, u, max, tol);
+    } else {
+      err = minimize(c, u, max, tol);
+    }
+    c.toExternal(u, x);
+    constraint = c;
+    constrainedParameters = u;
     return err;
   }
 
+  /**
+   * Solves the damped system (H+Lambda*S) h = D for the correction h.  S is the identity
+   * for Levenberg damping and the diagonal of H otherwise.  H is not changed so that it can
+   * be reused after a rejected step; only the damped copy is factored.
+   */
+  private boolean solveDamped(double[][] H, double[] D, double Lambda, double[] h) {
+    int m = D.length;
+    for(int i = 0; i<m; i++) {
+      System.arraycopy(H[i], 0, Hl[i], 0, m);
+      if(damping==DAMPING_LEVENBERG) {
+        Hl[i][i] = H[i][i]+Lambda;
+      } else { //scale by the diagonal, falling back to the identity for a flat direction
+        Hl[i][i] = H[i][i]+Lambda*((H[i][i]>0) ? H[i][i] : 1);
+      }
+    }
+    if(cholesky) {
+      return cd.decompose(Hl)&&(cd.solve(D, h)!=null);
+    }
+    lu.setComponents(Hl); //factored in place in the workspace
+    return lu.solve(D, h)!=null;
+  }
+
+  /**
+   * Gets the reduction of the function predicted by the quadratic model for the correction h.
+   */
+  private static double predictedReduction(double[][] H, double[] D, double[] h) {
+    double sum = 0;
+    for(int i = 0, m = h.length; i<m; i++) {
+      double Hh = 0;
+      for(int j = 0; j<m; j++) {
+        Hh += H[i][j]*h[j];
+      }
+      sum += h[i]*(D[i]-0.5*Hh);
+    }
+    return sum;
+  }
+
+  /**
+   * Updates Lambda after a step.  Levenberg and Marquardt damping divide or multiply
+   * Lambda by 10.  Nielsen damping uses the gain ratio rho, the actual reduction divided
+   * by the predicted reduction, to decrease Lambda smoothly and increases it by a growing
+   * factor after successive rejections.
+   */
+  private double updateLambda(double Lambda, boolean accepted, double rho) {
+    if(damping!=DAMPING_NIELSEN) {
+      return accepted ? Lambda/10. : 10.*Lambda;
+    }
+    if(accepted) {
+      nu = 2;
+      double t = (rho>0) ? 2*rho-1 : -1;
+      return Lambda*Math.max(1./3, 1-t*t*t);
+    }
+    Lambda = nu*Lambda;
+    nu = 2*nu;
+    return Lambda;
+  }
+
+  /**
+   * Returns true if the derivatives may be updated instead of evaluated after an accepted step
+   * with gain ratio rho.
+   */
+  private boolean useBroyden(double rho) {
+    return(broydenRefresh>1)&&(derivativeAge>=0)&&(derivativeAge+1<broydenRefresh)&&(rho>=poorStepRatio)&&(sparse==null);
+  }
+
+  /**
+   * Applies Broyden's rank one update J += (dr - J s) s^T / s^T s for the step s = x-xold
+   * and the change in the residuals dr = r-rold.
+   */
+  static void broydenUpdate(double[][] J, double[] x, double[] xold, double[] rold, double[] r) {
+    int m = x.length;
+    double ss = 0;
+    for(int k = 0; k<m; k++) {
+      ss += (x[k]-xold[k])*(x[k]-xold[k]);
+    }
+    if(ss==0) {
+      return;
+    }
+    for(int i = 0, n = r.length; i<n; i++) {
+      double[] Ji = J[i];
+      double Js = 0;
+      for(int k = 0; k<m; k++) {
+        Js += Ji[k]*(x[k]-xold[k]);
+      }
+      double c = (r[i]-rold[i]-Js)/ss;
+      for(int k = 0; k<m; k++) {
+        Ji[k] += c*(x[k]-xold[k]);
+      }
+    }
+  }
+
+  /**
+   * Applies the symmetric rank one update H += v v^T / v^T s with v = y - H s for the step s
+   * and the change in the gradient y.  The update is skipped when the denominator is too small.
+   */
+  static void symmetricRankOneUpdate(double[][] H, double[] s, double[] y, double[] v) {
+    int m = s.length;
+    double vs = 0, vv = 0, ss = 0;
+    for(int i = 0; i<m; i++) {
+      v[i] = y[i];
+      for(int j = 0; j<m; j++) {
+        v[i] -= H[i][j]*s[j];
+      }
+      vs += v[i]*s[i];
+      vv += v[i]*v[i];
+      ss += s[i]*s[i];
+    }
+    if((vs==0)||(Math.abs(vs)<1.e-8*Math.sqrt(vv*ss))) {
+      return;
+    }
+    for(int i = 0; i<m; i++) {
+      for(int j = 0; j<m; j++) {
+        H[i][j] += v[i]*v[j]/vs;
+      }
+    }
+  }
+
+  private void allocateArrays(int m) {
+    Hgn = new double[m][m];
+    Hl = new double[m][m];
+    xxn = new double[m];
+    D = new double[m];
+    dx = new double[m];
+    xtmp = new double[m];
+    xtmp1 = new double[m];
+    lu = new LUPDecomposition(m);
+    cd = new CholeskyDecomposition(m);
+    bs = new double[m];
+    by = new double[m];
+    J = null;
+    r = null;
+  }
+
+  /**
+   * Finishes a minimization whose exact solution is in xxn.
+   */
+  private double linearSolution(LeastSquaresFunction f, double[] x) {
+    int m = x.length;
+    double err = 0;
+    for(int i = 0; i<m; i++) {
+      err += (xxn[i]-x[i])*(xxn[i]-x[i]);
+    }
+    System.arraycopy(xxn, 0, x, 0, m);
+    rmsd = f.evaluate(x);
+    evaluations++;
+    Iterations = 1;
+    termination = LINEAR_SOLUTION;
+    fireCompleted();
+    return Math.sqrt(err);
+  }
+
+  /**
+   * Gets the Jacobian of the residuals, J[i][k] = dr[i]/dx[k].
+   *
+   * The analytic Jacobian is used if the function is a DifferentiableLeastSquaresFunction.
+   * Otherwise the Jacobian is found using forward differences from the given residuals.
+   *
+   * @param f the residual function
+   * @param x the parameters
+   * @param r the residuals at x
+   * @param J the Jacobian
+   * @param dx the size of the variations used in the derivatives
+   * @return the Jacobian
+   */
+  public double[][] getJacobian(LeastSquaresFunction f, double[] x, double[] r, double[][] J, double[] dx) {
+    if(f instanceof DifferentiableLeastSquaresFunction) {
+      return((DifferentiableLeastSquaresFunction) f).jacobian(x, J);
+    }
+    int m = x.length;
+    int n = r.length;
+    if((xp==null)||(xp.length!=m)) {
+      xp = new double[m];
+    }
+    if((rp==null)||(rp.length!=n)) {
+      rp = new double[n];
+    }
+    System.arraycopy(x, 0, xp, 0, m);
+    evaluations += m;
+    for(int k = 0; k<m; k++) {
+      xp[k] = x[k]+dx[k]; //change the kth one
+      f.evaluate(xp, rp);
+      for(int i = 0; i<n; i++) {
+        J[i][k] = (rp[i]-r[i])/dx[k];
+      }
+      xp[k] = x[k];       //reset
+    }
+    return J;
+  }
+
+  /**
+   * Gets the sparse Jacobian of the residuals from the analytic Jacobian or from forward
+   * differences that move the parameters of a color together.
+   */
+  private void getSparseJacobian(LeastSquaresFunction f, double[] x, double[] r, double[] dx) {
+    if(f instanceof DifferentiableLeastSquaresFunction) {
+      sparse.jacobian(((DifferentiableLeastSquaresFunction) f).jacobian(x, J));
+      return;
+    }
+    int m = x.length;
+    int n = r.length;
+    if((xp==null)||(xp.length!=m)) {
+      xp = new double[m];
+    }
+    if((rp==null)||(rp.length!=n)) {
+      rp = new double[n];
+    }
+    evaluations += sparse.jacobian(f, x, r, dx, xp, rp);
+  }
+
+  /**
+   * Builds the Gauss-Newton Hessian H = 2 J^T J and the negative gradient D = -2 J^T r
+   * of the sum of squared residuals.
+   *
+   * @param J the Jacobian of the residuals
+   * @param r the residuals
+   * @param H the Hessian
+   * @param D the negative gradient
+   */
+  static void getNormalEquations(double[][] J, double[] r, double[][] H, double[] D) {
+    int m = D.length;
+    for(int k = 0; k<m; k++) {
+      D[k] = 0;
+      for(int l = k; l<m; l++) {
+        H[k][l] = 0;
+      }
+    }
+    for(int i = 0, n = r.length; i<n; i++) {
+      double[] Ji = J[i];
+      for(int k = 0; k<m; k++) {
+        double Jik = Ji[k];
+        if(Jik==0) {
+          continue;
+        }
+        D[k] -= 2*Jik*r[i];
+        for(int l = k; l<m; l++) {
+          H[k][l] += 2*Jik*Ji[l];
+        }
+      }
+    }
+    for(int k = 0; k<m; k++) {
+      for(int l = k+1; l<m; l++) {
+        H[l][k] = H[k][l];
+      }
+    }
+  }
+
+  /**
+   * Builds the Gauss-Newton Hessian H = 2 J^T J.
+   */
+  static void getGaussNewtonHessian(double[][] J, double[][] H) {
+    int m = H.length;
+    for(int k = 0; k<m; k++) {
+      for(int l = k; l<m; l++) {
+        H[k][l] = 0;
+      }
+    }
+    for(int i = 0, n = J.length; i<n; i++) {
+      double[] Ji = J[i];
+      for(int k = 0; k<m; k++) {
+        double Jik = Ji[k];
+        if(Jik==0) {
+          continue;
+        }
+        for(int l = k; l<m; l++) {
+          H[k][l] += 2*Jik*Ji[l];
+        }
+      }
+    }
+    for(int k = 0; k<m; k++) {
+      for(int l = k+1; l<m; l++) {
+        H[l][k] = H[k][l];
+      }
+    }
+  }
+
+  static double sumOfSquares(double[] r) {
+    double sum = 0;
+    for(int i = 0, n = r.length; i<n; i++) {
+      sum += r[i]*r[i];
+    }
+    return sum;
+  }
+
+  private void startStatus() {
+    synchronized(runLock) {
+      status.reset();
+      generation++;
+      running = true;
+      if(cancelledGeneration==generation) { //cancelled before it started
+        status.stopRequested = true;
+      }
+    }
+    evaluations = 0;
+    hessianEvaluations = hessianMinimize.getEvaluations();
+    budgetStop = 0;
+  }
+
+  private void endRun() {
+    synchronized(runLock) {
+      running = false;
+    }
+  }
+
+  /**
+   * Requests a stop when a budget is used up or the value has stalled.
+   */
+  private void checkBudgets() {
+    if(status.stopRequested) {
+      return;
+    }
+    if(stallWindow>0) {
+      int slot = Iterations%stallWindow;
+      double old = stallValues[slot];
+      stallValues[slot] = status.value;
+      //the value is that of the best parameters so it never increases
+      if((Iterations>stallWindow)&&(old-status.value<=stallTolerance*Math.abs(old))) {
+        budgetStop = STALLED;
+      }
+    }
+    if((evaluationBudget>0)&&(status.evaluations>=evaluationBudget)) {
+      budgetStop = EVALUATION_BUDGET;
+    }
+    if((timeBudget>0)&&(status.elapsedNanos>=timeBudget)) {
+      budgetStop = TIME_BUDGET;
+    }
+    if(budgetStop!=0) {
+      status.stopRequested = true;
+    }
+  }
+
+  private int stopReason() {
+    return(budgetStop!=0) ? budgetStop : STOPPED;
+  }
+
+  private void fireIteration(double Lambda, double stepNorm, boolean accepted) {
+    status.iteration = Iterations;
+    status.value = rmsd_tmp1;
+    status.lambda = Lambda;
+    status.stepNorm = stepNorm;
+    status.accepted = accepted;
+    status.evaluations = evaluations+hessianMinimize.getEvaluations()-hessianEvaluations;
+    status.elapsedNanos = System.nanoTime()-status.startNanos;
+    for(int i = 0, n = listeners.size(); i<n; i++) {
+      listeners.get(i).iterationCompleted(status);
+    }
+    checkBudgets();
+    status.derivativeNanos = 0;
+    status.solveNanos = 0;
+  }
+
+  private void fireCompleted() {
+    status.iteration = Iterations;
+    status.value = rmsd;
+    status.evaluations = evaluations+hessianMinimize.getEvaluations()-hessianEvaluations;
+    status.elapsedNanos = System.nanoTime()-status.startNanos;
+    status.terminationReason = termination;
+    for(int i = 0, n = listeners.size(); i<n; i++) {
+      listeners.get(i).minimizationCompleted(status);
+    }
+  }
+
+  private static int terminationReason(double err, double relerr, double Lambda, double tol) {
+    if(err<=tol*1.e-6) {
+      return CONVERGED_STEP;
+    }
+    if(relerr<=tol*1.e-6) {
+      return CONVERGED_RELATIVE_STEP;
+    }
+    if(Lambda<=1e-9) {
+      return LAMBDA_UNDERFLOW;
+    }
+    return MAX_ITERATIONS;
+  }
+
   void check_rmsd(MultiVarFunction Veq, double[] xtmp, double[] xx, int mx) {
     //checks whether xtmp or xx is better, and keep the better one
     if(java.lang.Double.isNaN(ArrayLib.sum(xx))) {
@@ -106,6 +806,7 @@ public class LevenbergMarquardt {
       System.arraycopy(xtmp, 0, xx, 0, mx);
     } else {
       rmsd = Veq.evaluate(xx);
+      evaluations++;
       if(rmsd<=rmsd_tmp) {
         rmsd_tmp = rmsd;
         System.arraycopy(xx, 0, xtmp, 0, mx);
@@ -120,6 +821,370 @@ public class LevenbergMarquardt {
     return Iterations;
   }
 
+  /**
+   * Gets the reason the last minimization stopped.
+   *
+   * @return one of CONVERGED_STEP, CONVERGED_RELATIVE_STEP, LAMBDA_UNDERFLOW, MAX_ITERATIONS,
+   * LINEAR_SOLUTION, STOPPED, TIME_BUDGET, EVALUATION_BUDGET or STALLED
+   */
+  public int getTerminationReason() {
+    return termination;
+  }
+
+  /**
+   * Gets the status of the last minimization.  The status is reused by the next minimization.
+   *
+   * @return the status
+   */
+  public MinimizerStatus getStatus() {
+    return status;
+  }
+
+  /**
+   * Adds a listener that is notified after every iteration and when the minimization stops.
+   *
+   * @param listener the listener
+   */
+  public void addMinimizerListener(MinimizerListener listener) {
+    if(!listeners.contains(listener)) {
+      listeners.add(listener);
+    }
+  }
+
+  /**
+   * Removes a listener.
+   *
+   * @param listener the listener
+   */
+  public void removeMinimizerListener(MinimizerListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Gets the value of the function at the minimum found by the last minimization.
+   * This is the chi-squared of a least-squares fit.
+   *
+   * @return the minimum value
+   */
+  public double getMinimumValue() {
+    return rmsd;
+  }
+
+  /**
+   * Gets the covariance matrix of the parameters found by the last minimization.
+   *
+   * The covariance is 2 H^-1, where H is the Hessian the minimizer used in its last
+   * iteration, so no further function evaluations are needed.  For a least-squares function
+   * the Hessian is 2 J^T J and the covariance is scaled by the residual variance
+   * chi2/(n-m) of the n residuals and m parameters.  For other functions the value is taken
+   * to be a chi-squared weighted by the measurement errors and no scaling is applied.
+   *
+   * The Hessian is the one at the last point where derivatives were built, or its Broyden
+   * update, and so differs from the Hessian at the minimum by at most a step below the
+   * tolerance.  Frozen parameters have zero variance, and the variance of a parameter
+   * that ends on one of its bounds is not meaningful.
+   *
+   * @return the covariance matrix or null if the Hessian is not positive definite
+   */
+  public double[][] getCovariance() {
+    if(sparse!=null) { //assemble the Hessian from the sparse Jacobian
+      sparse.getHessian(H);
+    }
+    if((H==null)||(cd==null)||!cd.decompose(H)||!cd.isPositiveDefinite()) {
+      return null;
+    }
+    double[][] covariance = cd.inverseMatrixComponents();
+    int m = covariance.length;
+    double scale = 2;
+    if(residualCount>m) {
+      scale *= rmsd/(residualCount-m);
+    }
+    for(int i = 0; i<m; i++) {
+      for(int j = 0; j<m; j++) {
+        covariance[i][j] *= scale;
+      }
+    }
+    if(constraint==null) {
+      return covariance;
+    }
+    //transform to the external parameters; frozen parameters have no variance
+    double[] d = new double[m];
+    for(int k = 0; k<m; k++) {
+      d[k] = constraint.derivative(k, constrainedParameters[k]);
+    }
+    int[] free = constraint.free;
+    double[][] external = new double[constraint.full.length][constraint.full.length];
+    for(int i = 0; i<m; i++) {
+      for(int j = 0; j<m; j++) {
+        external[free[i]][free[j]] = d[i]*covariance[i][j]*d[j];
+      }
+    }
+    return external;
+  }
+
+  /**
+   * Gets the standard errors of the parameters found by the last minimization, the square
+   * roots of the diagonal of the covariance matrix.
+   *
+   * @return the standard errors or null if the covariance is not available
+   * @see #getCovariance()
+   */
+  public double[] getStandardErrors() {
+    double[][] covariance = getCovariance();
+    if(covariance==null) {
+      return null;
+    }
+    double[] errors = new double[covariance.length];
+    for(int i = 0; i<errors.length; i++) {
+      errors[i] = Math.sqrt(covariance[i][i]);
+    }
+    return errors;
+  }
+
+  /**
+   * Gets the correlation matrix of the parameters found by the last minimization.
+   *
+   * @return the correlation matrix or null if the covariance is not available
+   * @see #getCovariance()
+   */
+  public double[][] getCorrelation() {
+    double[][] covariance = getCovariance();
+    if(covariance==null) {
+      return null;
+    }
+    int m = covariance.length;
+    double[] errors = new double[m];
+    for(int i = 0; i<m; i++) {
+      errors[i] = Math.sqrt(covariance[i][i]);
+    }
+    for(int i = 0; i<m; i++) {
+      for(int j = 0; j<m; j++) {
+        double e = errors[i]*errors[j];
+        covariance[i][j] = (e>0) ? covariance[i][j]/e : 0; //zero for frozen parameters
+      }
+    }
+    return covariance;
+  }
+
+  /**
+   * Gets a description of a termination reason.
+   *
+   * @param reason the termination reason
+   * @return the description
+   */
+  public static String getTerminationDescription(int reason) {
+    switch(reason) {
+       case CONVERGED_STEP :
+         return "converged: step size below tolerance";               //$NON-NLS-1$
+       case CONVERGED_RELATIVE_STEP :
+         return "converged: relative step size below tolerance";      //$NON-NLS-1$
+       case LAMBDA_UNDERFLOW :
+         return "stopped: Lambda underflow";                          //$NON-NLS-1$
+       case MAX_ITERATIONS :
+         return "stopped: maximum number of iterations";              //$NON-NLS-1$
+       case LINEAR_SOLUTION :
+         return "solved: linear least squares";                       //$NON-NLS-1$
+       case STOPPED :
+         return "stopped: by request";                                //$NON-NLS-1$
+       case TIME_BUDGET :
+         return "stopped: time budget used up";                       //$NON-NLS-1$
+       case EVALUATION_BUDGET :
+         return "stopped: evaluation budget used up";                 //$NON-NLS-1$
+       case STALLED :
+         return "stopped: value stalled";                             //$NON-NLS-1$
+       default :
+         return "not minimized";                                      //$NON-NLS-1$
+    }
+  }
+
+  /**
+   * Sets box bounds on the parameters.  The function is only evaluated inside the box:
+   * bounded parameters are minimized through a smooth transformation of an unbounded
+   * internal parameter.  Use infinite values for parameters without a bound.
+   *
+   * @param lower the lower bounds or null
+   * @param upper the upper bounds or null
+   */
+  public void setBounds(double[] lower, double[] upper) {
+    this.lower = (lower==null) ? null : lower.clone();
+    this.upper = (upper==null) ? null : upper.clone();
+  }
+
+  /**
+   * Freezes parameters at their initial values.  Frozen parameters are removed from the
+   * minimization, so the Hessian and the derivative stencil shrink accordingly.
+   *
+   * @param frozen true for every frozen parameter, or null to free all parameters
+   */
+  public void setFrozen(boolean[] frozen) {
+    this.frozen = (frozen==null) ? null : frozen.clone();
+  }
+
+  /**
+   * Sets the damping strategy.
+   *
+   * @param damping DAMPING_LEVENBERG, DAMPING_MARQUARDT or DAMPING_NIELSEN
+   */
+  public void setDamping(int damping) {
+    this.damping = damping;
+  }
+
+  /**
+   * Gets the damping strategy.
+   *
+   * @return DAMPING_LEVENBERG, DAMPING_MARQUARDT or DAMPING_NIELSEN
+   */
+  public int getDamping() {
+    return damping;
+  }
+
+  /**
+   * Sets the solver for the damped system.  The symmetric system is solved by a
+   * Cholesky decomposition, with an LDL^T fallback for indefinite matrices, if cholesky
+   * is true and by an LUPDecomposition otherwise.
+   *
+   * @param cholesky boolean
+   */
+  public void setCholesky(boolean cholesky) {
+    this.cholesky = cholesky;
+  }
+
+  /**
+   * Sets the number of accepted steps between full evaluations of the derivatives.
+   *
+   * In between, the Jacobian of a LeastSquaresFunction is corrected by Broyden rank one
+   * updates and the Hessian of other functions by symmetric rank one updates that need
+   * only the gradient.  A step whose gain ratio is below the poor step ratio, or a step
+   * rejected with updated derivatives, forces a full evaluation.  A value of one or less
+   * evaluates the derivatives after every accepted step.
+   *
+   * @param refresh the refresh interval
+   */
+  public void setBroydenRefresh(int refresh) {
+    broydenRefresh = refresh;
+  }
+
+  /**
+   * Sets whether least-squares functions are tested for linearity before iterating.
+   * A function that is linear in its parameters is then solved exactly in one pass.
+   * LinearLeastSquaresFunctions are always solved exactly.
+   *
+   * @param detect true to test for linearity
+   * @see LinearLeastSquares#fitIfLinear(LeastSquaresFunction, double[], double)
+   */
+  public void setDetectLinear(boolean detect) {
+    detectLinear = detect;
+  }
+
+  /**
+   * Sets the gain ratio, actual over predicted reduction, below which a step is poor
+   * and the derivatives are evaluated in full.
+   *
+   * @param ratio the poor step ratio, 0.25 by default
+   */
+  public void setPoorStepRatio(double ratio) {
+    poorStepRatio = ratio;
+  }
+
+  /**
+   * Sets the wall-clock time after which a minimization stops with the best parameters
+   * found so far.  The budget is checked after every iteration.
+   *
+   * @param millis the time budget in milliseconds or 0 for none
+   */
+  public void setTimeBudget(long millis) {
+    timeBudget = Math.max(0, millis)*1000000L;
+  }
+
+  /**
+   * Gets the time budget.
+   *
+   * @return the time budget in milliseconds or 0 for none
+   */
+  public long getTimeBudget() {
+    return timeBudget/1000000L;
+  }
+
+  /**
+   * Sets the number of function evaluations after which a minimization stops with the
+   * best parameters found so far.  The budget is checked after every iteration, so it may
+   * be exceeded by the evaluations of one iteration.
+   *
+   * @param evaluations the evaluation budget or 0 for none
+   */
+  public void setEvaluationBudget(long evaluations) {
+    evaluationBudget = Math.max(0, evaluations);
+  }
+
+  /**
+   * Gets the evaluation budget.
+   *
+   * @return the evaluation budget or 0 for none
+   */
+  public long getEvaluationBudget() {
+    return evaluationBudget;
+  }
+
+  /**
+   * Sets stall detection.  A minimization stops when the best value has decreased by no
+   * more than the relative tolerance over the last window iterations, which ends fits
+   * whose tolerance cannot be reached in floating point.
+   *
+   * @param window the number of iterations or 0 to disable stall detection
+   * @param tolerance the relative decrease of the value
+   */
+  public void setStallDetection(int window, double tolerance) {
+    stallWindow = Math.max(0, window);
+    stallTolerance = tolerance;
+    stallValues = (stallWindow>0) ? new double[stallWindow] : null;
+  }
+
+  /**
+   * Gets the stall window.
+   *
+   * @return the number of iterations or 0 if stall detection is disabled
+   */
+  public int getStallWindow() {
+    return stallWindow;
+  }
+
+  /**
+   * Cancels the running minimization from any thread.  The minimization stops after the
+   * current iteration with the best parameters found so far and the termination reason
+   * STOPPED.  If no minimization is running, the next one to start is cancelled instead, so
+   * a cancel that arrives while a minimization is being set up is not lost.  Later
+   * minimizations are not affected.
+   */
+  public void cancel() {
+    synchronized(runLock) {
+      if(running) {
+        cancelledGeneration = generation;
+        status.requestStop();
+      } else {
+        cancelledGeneration = generation+1;
+      }
+    }
+  }
+
+  /**
+   * Gets the HessianMinimize that builds the finite difference Hessian.
+   *
+   * @return the HessianMinimize
+   */
+  public HessianMinimize getHessianMinimize() {
+    return hessianMinimize;
+  }
+
+  /**
+   * Sets the parallel mode of the finite difference Hessian.
+   *
+   * @param parallel true to evaluate the Hessian stencil on the common fork-join pool
+   * @see HessianMinimize#setParallel(boolean)
+   */
+  public void setParallel(boolean parallel) {
+    hessianMinimize.setParallel(parallel);
+  }
+
 }
 
 /*
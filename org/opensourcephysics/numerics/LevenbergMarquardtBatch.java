@@ -0,0 +1,292 @@
+/*
+ * Open Source Physics software is free software as described near the bottom of this code file.
+ *
+ * For additional information and documentation on Open Source Physics please see:
+ * <http://www.opensourcephysics.org/>
+ */
+
+package org.opensourcephysics.numerics;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * LevenbergMarquardtBatch fits many independent problems with the Levenberg-Marquardt
+ * algorithm on a work-stealing fork-join pool.
+ *
+ * The jobs are split into a few ranges per worker and each range is fit by its own
+ * LevenbergMarquardt, so that the workspace of a minimizer is shared by the jobs of the
+ * range and no minimizer outlives the batch.  Jobs whose functions are
+ * LeastSquaresFunctions are fit with the Gauss-Newton form of the algorithm.
+ */
+public class LevenbergMarquardtBatch {
+  private final ForkJoinPool pool;
+
+  /**
+   * Constructs a batch that runs on the common fork-join pool.
+   */
+  public LevenbergMarquardtBatch() {
+    this(ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Constructs a batch that runs on the given pool.
+   *
+   * @param pool ForkJoinPool
+   */
+  public LevenbergMarquardtBatch(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * Fits the jobs and returns the results in the same order as the jobs.
+   *
+   * The initial parameters of a job are not changed.
+   *
+   * @param jobs the jobs
+   * @return the results
+   */
+  public Result[] fit(List<Job> jobs) {
+    Job[] array = jobs.toArray(new Job[jobs.size()]);
+    Result[] results = new Result[array.length];
+    if(array.length>0) {
+      //several ranges per worker balance jobs that take different times
+      int leafSize = Math.max(1, array.length/(4*pool.getParallelism()));
+      pool.invoke(new FitTask(array, results, 0, array.length, leafSize));
+    }
+    return results;
+  }
+
+  /**
+   * Fits the jobs and returns the results in the same order as the jobs.
+   *
+   * @param jobs the jobs
+   * @return the results
+   */
+  public Result[] fit(Job... jobs) {
+    List<Job> list = new ArrayList<Job>(jobs.length);
+    for(int i = 0; i<jobs.length; i++) {
+      list.add(jobs[i]);
+    }
+    return fit(list);
+  }
+
+  Result fit(LevenbergMarquardt lm, Job job) {
+    double[] x = job.initialParameters.clone();
+    if(job.listener!=null) {
+      lm.addMinimizerListener(job.listener);
+    }
+    try {
+      if(job.function instanceof LeastSquaresFunction) {
+        lm.minimize((LeastSquaresFunction) job.function, x, job.max, job.tol);
+      } else {
+        lm.minimize(job.function, x, job.max, job.tol);
+      }
+    } catch(RuntimeException ex) {
+      return new Result(x, lm.getIterations(), Double.NaN, 0, ex);
+    } finally {
+      if(job.listener!=null) {
+        lm.removeMinimizerListener(job.listener);
+      }
+    }
+    return new Result(x, lm.getIterations(), lm.getMinimumValue(), lm.getTerminationReason(), null);
+  }
+
+  /**
+   * FitTask splits a range of jobs until at most leafSize jobs remain and fits them with
+   * one minimizer.
+   */
+  private class FitTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    Job[] jobs;
+    Result[] results;
+    int lo, hi, leafSize;
+
+    FitTask(Job[] jobs, Result[] results, int lo, int hi, int leafSize) {
+      this.jobs = jobs;
+      this.results = results;
+      this.lo = lo;
+      this.hi = hi;
+      this.leafSize = leafSize;
+    }
+
+    protected void compute() {
+      if(hi-lo>leafSize) {
+        int mid = (lo+hi)>>>1;
+        invokeAll(new FitTask(jobs, results, lo, mid, leafSize), new FitTask(jobs, results, mid, hi, leafSize));
+        return;
+      }
+      LevenbergMarquardt lm = new LevenbergMarquardt();
+      for(int i = lo; i<hi; i++) {
+        results[i] = fit(lm, jobs[i]);
+      }
+    }
+
+  }
+
+  /**
+   * Job is a function to be minimized together with its initial parameters.
+   */
+  public static class Job {
+    final MultiVarFunction function;
+    final double[] initialParameters;
+    final int max;
+    final double tol;
+    MinimizerListener listener;
+
+    /**
+     * Constructs a job.
+     *
+     * @param function the function to be minimized
+     * @param initialParameters the initial guess
+     * @param max the maximum iteration number
+     * @param tol the tolerance level
+     */
+    public Job(MultiVarFunction function, double[] initialParameters, int max, double tol) {
+      this.function = function;
+      this.initialParameters = initialParameters;
+      this.max = max;
+      this.tol = tol;
+    }
+
+    /**
+     * Gets the function.
+     *
+     * @return the function
+     */
+    public MultiVarFunction getFunction() {
+      return function;
+    }
+
+    /**
+     * Gets the initial parameters.
+     *
+     * @return the initial parameters
+     */
+    public double[] getInitialParameters() {
+      return initialParameters;
+    }
+
+    /**
+     * Sets a listener that follows the minimization of this job.  The listener may stop the
+     * minimization through its MinimizerStatus.
+     *
+     * @param listener the listener or null
+     */
+    public void setMinimizerListener(MinimizerListener listener) {
+      this.listener = listener;
+    }
+
+    /**
+     * Gets the listener.
+     *
+     * @return the listener or null
+     */
+    public MinimizerListener getMinimizerListener() {
+      return listener;
+    }
+
+  }
+
+  /**
+   * Result holds the outcome of a job.
+   */
+  public static class Result {
+    final double[] parameters;
+    final int iterations;
+    final double chiSquared;
+    final int terminationReason;
+    final RuntimeException exception;
+
+    Result(double[] parameters, int iterations, double chiSquared, int terminationReason, RuntimeException exception) {
+      this.parameters = parameters;
+      this.iterations = iterations;
+      this.chiSquared = chiSquared;
+      this.terminationReason = terminationReason;
+      this.exception = exception;
+    }
+
+    /**
+     * Gets the fitted parameters.
+     *
+     * @return the parameters
+     */
+    public double[] getParameters() {
+      return parameters;
+    }
+
+    /**
+     * Gets the number of iterations.
+     *
+     * @return the iterations
+     */
+    public int getIterations() {
+      return iterations;
+    }
+
+    /**
+     * Gets the value of the function at the fitted parameters.
+     *
+     * @return the chi-squared or NaN if the fit failed
+     */
+    public double getChiSquared() {
+      return chiSquared;
+    }
+
+    /**
+     * Gets the reason the fit stopped.
+     *
+     * @return a LevenbergMarquardt termination reason or 0 if the fit failed
+     * @see LevenbergMarquardt#getTerminationReason()
+     */
+    public int getTerminationReason() {
+      return terminationReason;
+    }
+
+    /**
+     * Gets the exception thrown by the function, if any.
+     *
+     * @return the exception or null if the fit completed
+     */
+    public RuntimeException getException() {
+      return exception;
+    }
+
+    /**
+     * Returns a String that describes the result.
+     * @return the description
+     */
+    public String toString() {
+      return "chi2="+chiSquared+" iterations="+iterations+" "                    //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+             +LevenbergMarquardt.getTerminationDescription(terminationReason);
+    }
+
+  }
+
+}
+
+
+/*
+ * Open Source Physics software is free software; you can redistribute
+ * it and/or modify it under the terms of the GNU General Public License (GPL) as
+ * published by the Free Software Foundation; either version 2 of the License,
+ * or(at your option) any later version.
+
+ * Code that uses any portion of the code in the org.opensourcephysics package
+ * or any subpackage (subdirectory) of this package must must also be be released
+ * under the GNU GPL license.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston MA 02111-1307 USA
+ * or view the license online at http://www.gnu.org/copyleft/gpl.html
+ *
+ * Copyright (c) 2007  The Open Source Physics project
+ *                     http://www.opensourcephysics.org
+ */
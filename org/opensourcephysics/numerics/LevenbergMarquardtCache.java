@@ -0,0 +1,253 @@
+/*
+ * Open Source Physics software is free software as described near the bottom of this code file.
+ *
+ * For additional information and documentation on Open Source Physics please see:
+ * <http://www.opensourcephysics.org/>
+ */
+
+package org.opensourcephysics.numerics;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LevenbergMarquardtCache remembers the results of recent fits so that refits of the same
+ * or slightly changed data start from parameters that are already close to the minimum.
+ *
+ * A fit is identified by a model key, chosen by the caller, together with a fingerprint of
+ * the data.  When both match a cached fit, the cached parameters are checked with a single
+ * evaluation and returned without iterating.  When only the model matches, the most recent
+ * fit of that model is used as the starting point if it is better than the initial guess.
+ * The least recently used fits are evicted once the cache is full.
+ *
+ * The cache may be shared by threads that fit with their own LevenbergMarquardt.
+ */
+public class LevenbergMarquardtCache {
+  private final int capacity;
+  private final LinkedHashMap<Key, LevenbergMarquardtBatch.Result> map;
+  private long hits, nearHits, misses;
+  private static final double VALUE_TOLERANCE = 1e-9; //relative round-off of a cached value
+
+  /**
+   * Constructs a cache that holds at most capacity fits.
+   *
+   * @param capacity the maximum number of fits
+   */
+  public LevenbergMarquardtCache(int capacity) {
+    this.capacity = Math.max(1, capacity);
+    map = new LinkedHashMap<Key, LevenbergMarquardtBatch.Result>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<Key, LevenbergMarquardtBatch.Result> eldest) {
+        return size()>LevenbergMarquardtCache.this.capacity;
+      }
+
+    };
+  }
+
+  /**
+   * Computes a fingerprint of data arrays.  Arrays that differ in any element or length give
+   * different fingerprints with overwhelming probability.
+   *
+   * @param data the data arrays
+   * @return the fingerprint
+   */
+  public static long fingerprint(double[]... data) {
+    long h = 0x9E3779B97F4A7C15L;
+    for(int k = 0; k<data.length; k++) {
+      double[] d = data[k];
+      h = mix(h^d.length);
+      for(int i = 0, n = d.length; i<n; i++) {
+        h = mix(h^Double.doubleToLongBits(d[i]));
+      }
+    }
+    return h;
+  }
+
+  private static long mix(long h) { //the SplitMix64 finalizer
+    h = (h^(h>>>30))*0xBF58476D1CE4E5B9L;
+    h = (h^(h>>>27))*0x94D049BB133111EBL;
+    return h^(h>>>31);
+  }
+
+  /*
+   *  Inputs
+   *
+   *   lm          - the minimizer used when the fit is not cached
+   *
+   *   model       - identifies the model, for example its expression or class
+   *
+   *   fingerprint - the fingerprint of the data
+   *
+   *   f           - the function of m parameters whose minimum is sought
+   *
+   *   x           - the initial guess, replaced by the fitted parameters
+   *
+   *   max         - the maximum iteration number
+   *
+   *   tol         - the tolerance level
+   *
+   *  Returns the result of the fit.  A result taken from the cache reports zero iterations.
+   */
+  public LevenbergMarquardtBatch.Result minimize(LevenbergMarquardt lm, Object model, long fingerprint, MultiVarFunction f, double[] x, int max, double tol) {
+    int m = x.length;
+    Key key = new Key(model, fingerprint, m);
+    LevenbergMarquardtBatch.Result cached;
+    synchronized(this) {
+      cached = map.get(key);
+    }
+    double value = Double.NaN; //the value of f at the cached parameters
+    if(cached!=null) {
+      //guard against a stale fingerprint by checking the cached value up to round-off,
+      //which differs when the value is recomputed through a bounds transform or a new parse
+      value = f.evaluate(cached.parameters);
+      if(Math.abs(value-cached.chiSquared)<=VALUE_TOLERANCE*Math.abs(cached.chiSquared)) {
+        synchronized(this) {
+          hits++;
+        }
+        System.arraycopy(cached.parameters, 0, x, 0, m);
+        return new LevenbergMarquardtBatch.Result(x.clone(), 0, value, cached.terminationReason, null);
+      }
+    } else {
+      cached = nearest(model, m);
+      if(cached!=null) {
+        value = f.evaluate(cached.parameters);
+      }
+    }
+    if(cached!=null) {
+      if(value<f.evaluate(x)) {
+        System.arraycopy(cached.parameters, 0, x, 0, m);
+      }
+      synchronized(this) {
+        nearHits++;
+      }
+    } else {
+      synchronized(this) {
+        misses++;
+      }
+    }
+    if(f instanceof LeastSquaresFunction) {
+      lm.minimize((LeastSquaresFunction) f, x, max, tol);
+    } else {
+      lm.minimize(f, x, max, tol);
+    }
+    LevenbergMarquardtBatch.Result result = new LevenbergMarquardtBatch.Result(x.clone(), lm.getIterations(), lm.getMinimumValue(), lm.getTerminationReason(), null);
+    if(!Double.isNaN(result.chiSquared)) {
+      //the caller owns result, so the cache keeps its own copy of the parameters
+      LevenbergMarquardtBatch.Result copy = new LevenbergMarquardtBatch.Result(x.clone(), result.iterations, result.chiSquared, result.terminationReason, null);
+      synchronized(this) {
+        map.put(key, copy);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Finds the most recently used fit of a model with m parameters.
+   */
+  private synchronized LevenbergMarquardtBatch.Result nearest(Object model, int m) {
+    LevenbergMarquardtBatch.Result result = null;
+    for(Iterator<Map.Entry<Key, LevenbergMarquardtBatch.Result>> it = map.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<Key, LevenbergMarquardtBatch.Result> entry = it.next();
+      if((entry.getKey().parameterCount==m)&&entry.getKey().model.equals(model)) {
+        result = entry.getValue(); //iteration runs from the eldest to the most recent
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Removes every fit.
+   */
+  public synchronized void clear() {
+    map.clear();
+  }
+
+  /**
+   * Gets the number of cached fits.
+   *
+   * @return int
+   */
+  public synchronized int size() {
+    return map.size();
+  }
+
+  /**
+   * Gets the number of fits returned from the cache without iterating.
+   *
+   * @return long
+   */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * Gets the number of fits that were warm-started from a fit of the same model.
+   *
+   * @return long
+   */
+  public synchronized long getNearHits() {
+    return nearHits;
+  }
+
+  /**
+   * Gets the number of fits that started from the initial guess.
+   *
+   * @return long
+   */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * Key identifies a fit by model, data fingerprint and number of parameters.
+   */
+  private static class Key {
+    final Object model;
+    final long fingerprint;
+    final int parameterCount;
+
+    Key(Object model, long fingerprint, int parameterCount) {
+      this.model = model;
+      this.fingerprint = fingerprint;
+      this.parameterCount = parameterCount;
+    }
+
+    public boolean equals(Object obj) {
+      if(!(obj instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) obj;
+      return (fingerprint==key.fingerprint)&&(parameterCount==key.parameterCount)&&model.equals(key.model);
+    }
+
+    public int hashCode() {
+      return 31*(31*model.hashCode()+(int) (fingerprint^(fingerprint>>>32)))+parameterCount;
+    }
+
+  }
+
+}
+
+
+/*
+ * Open Source Physics software is free software; you can redistribute
+ * it and/or modify it under the terms of the GNU General Public License (GPL) as
+ * published by the Free Software Foundation; either version 2 of the License,
+ * or(at your option) any later version.
+
+ * Code that uses any portion of the code in the org.opensourcephysics package
+ * or any subpackage (subdirectory) of this package must must also be be released
+ * under the GNU GPL license.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston MA 02111-1307 USA
+ * or view the license online at http://www.gnu.org/copyleft/gpl.html
+ *
+ * Copyright (c) 2007  The Open Source Physics project
+ *                     http://www.opensourcephysics.org
+ */
@@ -0,0 +1,435 @@
+/*
+ * Open Source Physics software is free software as described near the bottom of this code file.
+ *
+ * For additional information and documentation on Open Source Physics please see:
+ * <http://www.opensourcephysics.org/>
+ */
+
+package org.opensourcephysics.numerics;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LevenbergMarquardtMultiStart looks for the global minimum of a function by running the
+ * Levenberg-Marquardt algorithm from many starting points in parallel.
+ *
+ * The first run starts from the initial guess and the others from a Latin hypercube sample
+ * of a box of parameters: the range of every parameter is divided into as many strata as
+ * there are samples and each stratum is used once.  A run is pruned when its value is well
+ * above the best value reached by any run and it has stopped catching up.
+ *
+ * The runs share the function, so its evaluate methods must be safe to call concurrently.
+ */
+public class LevenbergMarquardtMultiStart {
+  private final LevenbergMarquardtBatch batch;
+  private int starts = 16;
+  private long seed;
+  private boolean pruning = true;
+  private double pruneFactor = 2;
+  private int pruneWindow = 5;
+
+  /**
+   * Constructs a multi-start minimizer that runs on the common fork-join pool.
+   */
+  public LevenbergMarquardtMultiStart() {
+    this(ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Constructs a multi-start minimizer that runs on the given pool.
+   *
+   * @param pool ForkJoinPool
+   */
+  public LevenbergMarquardtMultiStart(ForkJoinPool pool) {
+    batch = new LevenbergMarquardtBatch(pool);
+  }
+
+  /*
+   *  Inputs
+   *
+   *   f     - the function of m parameters whose minimum is sought
+   *
+   *   x     - the initial guess, replaced by the best parameters found
+   *
+   *   lower - the lower corner of the box of starting points
+   *
+   *   upper - the upper corner of the box of starting points
+   *
+   *   max   - the maximum iteration number of every run
+   *
+   *   tol   - the tolerance level
+   *
+   *  The box only limits the starting points; the runs are not constrained.
+   */
+  public Summary minimize(MultiVarFunction f, double[] x, double[] lower, double[] upper, int max, double tol) {
+    int m = x.length;
+    if((lower.length!=m)||(upper.length!=m)) {
+      throw new IllegalArgumentException("The box must have one bound per parameter."); //$NON-NLS-1$
+    }
+    double[][] points = new double[starts][];
+    points[0] = x.clone();
+    double[][] sample = latinHypercube(starts-1, lower, upper, new Random(seed));
+    System.arraycopy(sample, 0, points, 1, sample.length);
+    AtomicLong best = new AtomicLong(Double.doubleToLongBits(Double.POSITIVE_INFINITY));
+    List<LevenbergMarquardtBatch.Job> jobs = new ArrayList<LevenbergMarquardtBatch.Job>(starts);
+    for(int i = 0; i<starts; i++) {
+      LevenbergMarquardtBatch.Job job = new LevenbergMarquardtBatch.Job(f, points[i], max, tol);
+      job.setMinimizerListener(new RunListener(best));
+      jobs.add(job);
+    }
+    Summary summary = new Summary(points, batch.fit(jobs));
+    if(summary.best!=null) {
+      System.arraycopy(summary.best.parameters, 0, x, 0, m);
+    }
+    return summary;
+  }
+
+  /**
+   * Samples n points from a box so that every parameter range is divided into n equal
+   * strata and each stratum holds exactly one point.
+   *
+   * @param n the number of points
+   * @param lower the lower corner of the box
+   * @param upper the upper corner of the box
+   * @param random the source of random numbers
+   * @return the points
+   */
+  public static double[][] latinHypercube(int n, double[] lower, double[] upper, Random random) {
+    int m = lower.length;
+    double[][] points = new double[n][m];
+    int[] strata = new int[n];
+    for(int j = 0; j<m; j++) {
+      for(int i = 0; i<n; i++) {
+        strata[i] = i;
+      }
+      for(int i = n-1; i>0; i--) { //shuffle the strata
+        int k = random.nextInt(i+1);
+        int swap = strata[i];
+        strata[i] = strata[k];
+        strata[k] = swap;
+      }
+      for(int i = 0; i<n; i++) {
+        double u = (strata[i]+random.nextDouble())/n;
+        points[i][j] = lower[j]+u*(upper[j]-lower[j]);
+      }
+    }
+    return points;
+  }
+
+  /**
+   * Lowers the shared best value if v is smaller.
+   */
+  static void offer(AtomicLong best, double v) {
+    long bits;
+    while(v<Double.longBitsToDouble(bits = best.get())) {
+      if(best.compareAndSet(bits, Double.doubleToLongBits(v))) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * RunListener shares the progress of one run and prunes the run when it is dominated.
+   *
+   * A run is dominated when its value exceeds the best value by more than (pruneFactor-1)
+   * times the magnitude of the best value and, over the last pruneWindow iterations, it
+   * closed less than a tenth of that gap.
+   */
+  private class RunListener implements MinimizerListener {
+    AtomicLong best;
+    double[] history = new double[pruneWindow];
+
+    RunListener(AtomicLong best) {
+      this.best = best;
+    }
+
+    public void iterationCompleted(MinimizerStatus status) {
+      double value = status.getValue();
+      offer(best, value);
+      if(!pruning) {
+        return;
+      }
+      int k = status.getIteration()%pruneWindow;
+      double old = history[k];
+      history[k] = value;
+      if(status.getIteration()<=pruneWindow) {
+        return;
+      }
+      double b = Double.longBitsToDouble(best.get());
+      double gap = value-b;
+      if((gap>(pruneFactor-1)*Math.abs(b))&&(old-value<0.1*gap)) {
+        status.requestStop();
+      }
+    }
+
+    public void minimizationCompleted(MinimizerStatus status) {
+      offer(best, status.getValue());
+    }
+
+  }
+
+  /**
+   * Sets the number of runs, including the run from the initial guess.
+   *
+   * @param starts the number of runs
+   */
+  public void setStarts(int starts) {
+    this.starts = Math.max(1, starts);
+  }
+
+  /**
+   * Gets the number of runs.
+   *
+   * @return int
+   */
+  public int getStarts() {
+    return starts;
+  }
+
+  /**
+   * Sets the seed of the starting point sample so that a search can be repeated.
+   *
+   * @param seed long
+   */
+  public void setSeed(long seed) {
+    this.seed = seed;
+  }
+
+  /**
+   * Enables or disables pruning of dominated runs.  Pruning is enabled by default.
+   *
+   * @param pruning true to prune
+   */
+  public void setPruning(boolean pruning) {
+    this.pruning = pruning;
+  }
+
+  /**
+   * Sets how far above the best value a run must be before it can be pruned.  A value
+   * of 2 prunes a chi-squared that is more than twice the best one.
+   *
+   * @param factor a factor greater than 1
+   */
+  public void setPruneFactor(double factor) {
+    pruneFactor = factor;
+  }
+
+  /**
+   * Sets the number of iterations over which the progress of a run is judged.
+   *
+   * @param window the number of iterations
+   */
+  public void setPruneWindow(int window) {
+    pruneWindow = Math.max(1, window);
+  }
+
+  /**
+   * Summary holds the runs of a search and describes how their results spread.
+   */
+  public static class Summary {
+    final double[][] startingPoints;
+    final LevenbergMarquardtBatch.Result[] results;
+    LevenbergMarquardtBatch.Result best;
+    int pruned, failed;
+    double[] values; //sorted values of the completed runs
+
+    Summary(double[][] startingPoints, LevenbergMarquardtBatch.Result[] results) {
+      this.startingPoints = startingPoints;
+      this.results = results;
+      double[] v = new double[results.length];
+      int n = 0;
+      for(int i = 0; i<results.length; i++) {
+        LevenbergMarquardtBatch.Result result = results[i];
+        if(result.exception!=null) {
+          failed++;
+          continue;
+        }
+        if((best==null)||(result.chiSquared<best.chiSquared)) {
+          best = result;
+        }
+        if(result.terminationReason==LevenbergMarquardt.STOPPED) {
+          pruned++;
+        } else {
+          v[n++] = result.chiSquared;
+        }
+      }
+      values = Arrays.copyOf(v, n);
+      Arrays.sort(values);
+    }
+
+    /**
+     * Gets the run that reached the smallest value.
+     *
+     * @return the best result or null if every run failed
+     */
+    public LevenbergMarquardtBatch.Result getBest() {
+      return best;
+    }
+
+    /**
+     * Gets the results in the order of the starting points.
+     *
+     * @return the results
+     */
+    public LevenbergMarquardtBatch.Result[] getResults() {
+      return results;
+    }
+
+    /**
+     * Gets the starting points.  The first one is the initial guess.
+     *
+     * @return the starting points
+     */
+    public double[][] getStartingPoints() {
+      return startingPoints;
+    }
+
+    /**
+     * Gets the number of runs that were pruned.
+     *
+     * @return int
+     */
+    public int getPrunedCount() {
+      return pruned;
+    }
+
+    /**
+     * Gets the number of runs whose function threw an exception.
+     *
+     * @return int
+     */
+    public int getFailedCount() {
+      return failed;
+    }
+
+    /**
+     * Gets the number of runs that were neither pruned nor failed.
+     *
+     * @return int
+     */
+    public int getCompletedCount() {
+      return values.length;
+    }
+
+    /**
+     * Gets the median value of the completed runs.
+     *
+     * @return the median or NaN if no run completed
+     */
+    public double getMedianValue() {
+      int n = values.length;
+      if(n==0) {
+        return Double.NaN;
+      }
+      return ((n&1)==1) ? values[n/2] : 0.5*(values[n/2-1]+values[n/2]);
+    }
+
+    /**
+     * Gets the largest value of the completed runs.
+     *
+     * @return the maximum or NaN if no run completed
+     */
+    public double getMaximumValue() {
+      return (values.length==0) ? Double.NaN : values[values.length-1];
+    }
+
+    /**
+     * Counts the completed runs whose value is within a fraction of the best value.  A
+     * count close to the number of runs suggests that the best minimum is the global one.
+     *
+     * @param fraction the allowed relative difference
+     * @return the number of runs
+     */
+    public int countWithin(double fraction) {
+      if(best==null) {
+        return 0;
+      }
+      double limit = best.chiSquared+fraction*Math.abs(best.chiSquared);
+      int count = 0;
+      for(int i = 0; i<values.length; i++) {
+        if(values[i]<=limit) {
+          count++;
+        }
+      }
+      return count;
+    }
+
+    /**
+     * Gets the standard deviation of every parameter over the completed runs.
+     *
+     * @return the standard deviations or null if no run completed
+     */
+    public double[] getParameterSpread() {
+      if(best==null) {
+        return null;
+      }
+      int m = best.parameters.length;
+      double[] mean = new double[m];
+      double[] spread = new double[m];
+      int n = 0;
+      for(int i = 0; i<results.length; i++) {
+        LevenbergMarquardtBatch.Result result = results[i];
+        if((result.exception!=null)||(result.terminationReason==LevenbergMarquardt.STOPPED)) {
+          continue;
+        }
+        n++;
+        for(int j = 0; j<m; j++) { //Welford's running mean and variance
+          double d = result.parameters[j]-mean[j];
+          mean[j] += d/n;
+          spread[j] += d*(result.parameters[j]-mean[j]);
+        }
+      }
+      if(n==0) {
+        return null;
+      }
+      for(int j = 0; j<m; j++) {
+        spread[j] = Math.sqrt(spread[j]/n);
+      }
+      return spread;
+    }
+
+    /**
+     * Returns a String that describes the search.
+     * @return the description
+     */
+    public String toString() {
+      if(best==null) {
+        return "runs="+results.length+" failed="+failed; //$NON-NLS-1$ //$NON-NLS-2$
+      }
+      return "best chi2="+best.chiSquared+" median="+getMedianValue()+" max="+getMaximumValue() //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+             +" runs="+results.length+" within 1e-6 of best="+countWithin(1e-6)               //$NON-NLS-1$ //$NON-NLS-2$
+             +" pruned="+pruned+" failed="+failed;                                             //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+  }
+
+}
+
+
+/*
+ * Open Source Physics software is free software; you can redistribute
+ * it and/or modify it under the terms of the GNU General Public License (GPL) as
+ * published by the Free Software Foundation; either version 2 of the License,
+ * or(at your option) any later version.
+
+ * Code that uses any portion of the code in the org.opensourcephysics package
+ * or any subpackage (subdirectory) of this package must must also be be released
+ * under the GNU GPL license.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston MA 02111-1307 USA
+ * or view the license online at http://www.gnu.org/copyleft/gpl.html
+ *
+ * Copyright (c) 2007  The Open Source Physics project
+ *                     http://www.opensourcephysics.org
+ */
@@ -0,0 +1,240 @@
+/*
+ * Open Source Physics software is free software as described near the bottom of this code file.
+ *
+ * For additional information and documentation on Open Source Physics please see:
+ * <http://www.opensourcephysics.org/>
+ */
+
+package org.opensourcephysics.numerics;
+
+/**
+ * LinearLeastSquares solves linear least-squares problems, min |A x - y|, using a
+ * Householder QR decomposition with column pivoting.
+ *
+ * Rank deficient problems return the basic solution in which the parameters of
+ * dependent columns are zero.  Models that are linear in their parameters are solved
+ * in one pass, and the solution may also be used to seed the LevenbergMarquardt
+ * minimizer for models that are only partly linear.
+ *
+ * This class cannot be subclassed or instantiated because all methods are static.
+ */
+public class LinearLeastSquares {
+  private LinearLeastSquares() {} // prohibit instantiation because all methods are static
+
+  /**
+   * Solves min |A x - y| for x.  The arrays are not changed.
+   *
+   * @param A double[][] the n by m design matrix
+   * @param y double[] the n observations
+   * @return double[] the m parameters
+   */
+  public static double[] solve(double[][] A, double[] y) {
+    int n = A.length;
+    int m = (n==0) ? 0 : A[0].length;
+    if(y.length!=n) {
+      throw new IllegalArgumentException("Design matrix and observations must have the same number of rows."); //$NON-NLS-1$
+    }
+    // copy A by columns so that the Householder reflections run over contiguous arrays
+    double[][] col = new double[m][n];
+    for(int i = 0; i<n; i++) {
+      double[] Ai = A[i];
+      for(int k = 0; k<m; k++) {
+        col[k][i] = Ai[k];
+      }
+    }
+    double[] b = y.clone();
+    int[] perm = new int[m];
+    double[] norm2 = new double[m];
+    for(int k = 0; k<m; k++) {
+      perm[k] = k;
+      norm2[k] = dot(col[k], col[k], 0, n);
+    }
+    int steps = Math.min(n, m);
+    double[] diag = new double[steps];
+    for(int k = 0; k<steps; k++) {
+      int p = k; // pivot on the column with the largest remaining norm
+      for(int j = k+1; j<m; j++) {
+        if(norm2[j]>norm2[p]) {
+          p = j;
+        }
+      }
+      if(p!=k) {
+        double[] tc = col[k];
+        col[k] = col[p];
+        col[p] = tc;
+        double tn = norm2[k];
+        norm2[k] = norm2[p];
+        norm2[p] = tn;
+        int ti = perm[k];
+        perm[k] = perm[p];
+        perm[p] = ti;
+      }
+      double[] v = col[k];
+      double alpha = Math.sqrt(dot(v, v, k, n));
+      if(alpha==0) {
+        diag[k] = 0;
+        continue;
+      }
+      if(v[k]>0) {
+        alpha = -alpha;
+      }
+      v[k] -= alpha; // v is now the Householder vector and R[k][k] = alpha
+      double vv = dot(v, v, k, n);
+      for(int j = k+1; j<m; j++) {
+        double[] c = col[j];
+        double s = 2*dot(v, c, k, n)/vv;
+        for(int i = k; i<n; i++) {
+          c[i] -= s*v[i];
+        }
+        norm2[j] -= c[k]*c[k]; // remove the finished row from the remaining norm
+      }
+      double s = 2*dot(v, b, k, n)/vv;
+      for(int i = k; i<n; i++) {
+        b[i] -= s*v[i];
+      }
+      diag[k] = alpha;
+    }
+    // determine the rank from the pivoted diagonal of R
+    int rank = 0;
+    double limit = (steps>0) ? Math.abs(diag[0])*Math.max(n, m)*Math.ulp(1.0) : 0;
+    while((rank<steps)&&(Math.abs(diag[rank])>limit)) {
+      rank++;
+    }
+    // back substitution R z = Q^T y; the upper triangle of R is stored above the diagonal of col
+    double[] z = new double[m];
+    for(int k = rank-1; k>=0; k--) {
+      double sum = b[k];
+      for(int j = k+1; j<rank; j++) {
+        sum -= col[j][k]*z[j];
+      }
+      z[k] = sum/diag[k];
+    }
+    double[] x = new double[m];
+    for(int k = 0; k<m; k++) {
+      x[perm[k]] = z[k];
+    }
+    return x;
+  }
+
+  private static double dot(double[] a, double[] b, int from, int to) {
+    double sum = 0;
+    for(int i = from; i<to; i++) {
+      sum += a[i]*b[i];
+    }
+    return sum;
+  }
+
+  /**
+   * Fits a linear least-squares function by solving for its parameters in one pass.
+   *
+   * @param f LinearLeastSquaresFunction the function
+   * @param x double[] receives the parameters
+   * @return double[] the parameters
+   */
+  public static double[] fit(LinearLeastSquaresFunction f, double[] x) {
+    double[] solution = solve(f.getDesignMatrix(), f.getObservations());
+    System.arraycopy(solution, 0, x, 0, x.length);
+    return x;
+  }
+
+  /**
+   * Tests whether a least-squares function is linear in its parameters and, if it is,
+   * replaces the parameters with the exact least-squares solution.
+   *
+   * The residuals r(x) are assumed to be affine, r(x+s) = r(x)+J s, and J is built from
+   * m unit steps.  The assumption is then checked at a further point.  The test costs m+2
+   * evaluations of the residuals; x is unchanged if the function is not linear.
+   *
+   * @param f LeastSquaresFunction the function
+   * @param x double[] the parameters
+   * @param tol double the relative tolerance of the linearity check
+   * @return true if the function is linear and x now holds the solution
+   */
+  public static boolean fitIfLinear(LeastSquaresFunction f, double[] x, double tol) {
+    return fitIfLinear(f, x, tol, new double[f.getResidualCount()][x.length]);
+  }
+
+  /**
+   * Tests whether a least-squares function is linear and keeps the Jacobian of the test in J.
+   */
+  static boolean fitIfLinear(LeastSquaresFunction f, double[] x, double tol, double[][] J) {
+    int m = x.length;
+    int n = f.getResidualCount();
+    if(f instanceof LinearLeastSquaresFunction) {
+      double[][] A = ((LinearLeastSquaresFunction) f).getDesignMatrix();
+      double[] solution = solve(A, ((LinearLeastSquaresFunction) f).getObservations());
+      System.arraycopy(solution, 0, x, 0, m);
+      for(int i = 0; i<n; i++) {
+        for(int k = 0; k<m; k++) {
+          J[i][k] = -A[i][k];
+        }
+      }
+      return true;
+    }
+    double[] r0 = f.evaluate(x, new double[n]);
+    double[] xs = x.clone();
+    double[] rs = new double[n];
+    double[] h = new double[m];
+    for(int k = 0; k<m; k++) {
+      h[k] = Math.abs(x[k])+1.0;
+      xs[k] = x[k]+h[k];
+      f.evaluate(xs, rs);
+      for(int i = 0; i<n; i++) {
+        J[i][k] = (rs[i]-r0[i])/h[k];
+      }
+      xs[k] = x[k];
+    }
+    // check the affine model at a point that moves every parameter
+    for(int k = 0; k<m; k++) {
+      xs[k] = x[k]-0.5*h[k]*(k+1);
+    }
+    f.evaluate(xs, rs);
+    double scale = 0, dev = 0;
+    for(int i = 0; i<n; i++) {
+      double predicted = r0[i];
+      for(int k = 0; k<m; k++) {
+        predicted += J[i][k]*(xs[k]-x[k]);
+      }
+      dev = Math.max(dev, Math.abs(rs[i]-predicted));
+      scale = Math.max(scale, Math.max(Math.abs(rs[i]), Math.abs(r0[i])));
+    }
+    if(!(dev<=tol*scale)) { // also rejects NaN
+      return false;
+    }
+    // r(x+s) = r0 + J s is least when J s = -r0
+    for(int i = 0; i<n; i++) {
+      r0[i] = -r0[i];
+    }
+    double[] s = solve(J, r0);
+    for(int k = 0; k<m; k++) {
+      x[k] += s[k];
+    }
+    return true;
+  }
+
+}
+
+
+/*
+ * Open Source Physics software is free software; you can redistribute
+ * it and/or modify it under the terms of the GNU General Public License (GPL) as
+ * published by the Free Software Foundation; either version 2 of the License,
+ * or(at your option) any later version.
+
+ * Code that uses any portion of the code in the org.opensourcephysics package
+ * or any subpackage (subdirectory) of this package must must also be be released
+ * under the GNU GPL license.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston MA 02111-1307 USA
+ * or view the license online at http://www.gnu.org/copyleft/gpl.html
+ *
+ * Copyright (c) 2007  The Open Source Physics project
+ *                     http://www.opensourcephysics.org
+ */
@@ -0,0 +1,222 @@
+/*
+ * Open Source Physics software is free software as described near the bottom of this code file.
+ *
+ * For additional information and documentation on Open Source Physics please see:
+ * <http://www.opensourcephysics.org/>
+ */
+
+package org.opensourcephysics.numerics;
+
+/**
+ * MinimizerStatus reports the progress of a minimization.
+ *
+ * Times are measured with System.nanoTime.  Derivative time is spent building the Hessian,
+ * gradient or Jacobian; solve time is spent factoring and solving the damped system.
+ * Evaluations count calls to the function, or to the residual vector of a least-squares
+ * function, including those made for finite difference derivatives.
+ */
+public class MinimizerStatus {
+  int iteration;
+  double value = Double.NaN;
+  double lambda;
+  double stepNorm = Double.NaN;
+  boolean accepted;
+  long evaluations;
+  long derivativeNanos, solveNanos;           // this iteration
+  long totalDerivativeNanos, totalSolveNanos; // since the minimization started
+  long startNanos, elapsedNanos;
+  int terminationReason;
+  volatile boolean stopRequested;
+
+  void reset() {
+    iteration = 0;
+    value = Double.NaN;
+    lambda = 0;
+    stepNorm = Double.NaN;
+    accepted = false;
+    evaluations = 0;
+    derivativeNanos = solveNanos = 0;
+    totalDerivativeNanos = totalSolveNanos = 0;
+    startNanos = System.nanoTime();
+    elapsedNanos = 0;
+    terminationReason = 0;
+    stopRequested = false;
+  }
+
+  void addDerivativeTime(long nanos) {
+    derivativeNanos += nanos;
+    totalDerivativeNanos += nanos;
+  }
+
+  void addSolveTime(long nanos) {
+    solveNanos += nanos;
+    totalSolveNanos += nanos;
+  }
+
+  /**
+   * Asks the minimizer to stop after the current iteration.  The best parameters found so
+   * far are kept and the termination reason is LevenbergMarquardt.STOPPED.
+   */
+  public void requestStop() {
+    stopRequested = true;
+  }
+
+  /**
+   * Returns true if a stop has been requested.
+   *
+   * @return boolean
+   */
+  public boolean isStopRequested() {
+    return stopRequested;
+  }
+
+  /**
+   * Gets the iteration number.
+   *
+   * @return int
+   */
+  public int getIteration() {
+    return iteration;
+  }
+
+  /**
+   * Gets the value of the function at the best parameters found so far.
+   *
+   * @return double
+   */
+  public double getValue() {
+    return value;
+  }
+
+  /**
+   * Gets the damping parameter Lambda that will be used by the next iteration.
+   * Minimizers without damping report zero.
+   *
+   * @return double
+   */
+  public double getLambda() {
+    return lambda;
+  }
+
+  /**
+   * Gets the norm of the correction computed by the last iteration.
+   *
+   * @return double
+   */
+  public double getStepNorm() {
+    return stepNorm;
+  }
+
+  /**
+   * Returns true if the correction of the last iteration was accepted.
+   *
+   * @return boolean
+   */
+  public boolean isAccepted() {
+    return accepted;
+  }
+
+  /**
+   * Gets the number of function evaluations since the minimization started.
+   *
+   * @return long
+   */
+  public long getEvaluations() {
+    return evaluations;
+  }
+
+  /**
+   * Gets the time spent building derivatives during the last iteration.
+   *
+   * @return long nanoseconds
+   */
+  public long getDerivativeNanos() {
+    return derivativeNanos;
+  }
+
+  /**
+   * Gets the time spent solving the linear system during the last iteration.
+   *
+   * @return long nanoseconds
+   */
+  public long getSolveNanos() {
+    return solveNanos;
+  }
+
+  /**
+   * Gets the time spent building derivatives since the minimization started.
+   *
+   * @return long nanoseconds
+   */
+  public long getTotalDerivativeNanos() {
+    return totalDerivativeNanos;
+  }
+
+  /**
+   * Gets the time spent solving linear systems since the minimization started.
+   *
+   * @return long nanoseconds
+   */
+  public long getTotalSolveNanos() {
+    return totalSolveNanos;
+  }
+
+  /**
+   * Gets the time since the minimization started.
+   *
+   * @return long nanoseconds
+   */
+  public long getElapsedNanos() {
+    return elapsedNanos;
+  }
+
+  /**
+   * Gets the reason the minimization stopped.
+   *
+   * @return a LevenbergMarquardt termination reason or 0 while the minimization is running
+   * @see LevenbergMarquardt#getTerminationDescription(int)
+   */
+  public int getTerminationReason() {
+    return terminationReason;
+  }
+
+  /**
+   * Returns a String that represents the value of this object.
+   * @return a string representation of the status
+   */
+  public String toString() {
+    String s = "iteration="+iteration+" value="+value+" lambda="+lambda+" step="+stepNorm //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+               +" evaluations="+evaluations+" derivative ms="+totalDerivativeNanos/1.e6 //$NON-NLS-1$ //$NON-NLS-2$
+               +" solve ms="+totalSolveNanos/1.e6;                                      //$NON-NLS-1$
+    if(terminationReason!=0) {
+      s += " "+LevenbergMarquardt.getTerminationDescription(terminationReason);         //$NON-NLS-1$
+    }
+    return s;
+  }
+
+}
+
+
+/*
+ * Open Source Physics software is free software; you can redistribute
+ * it and/or modify it under the terms of the GNU General Public License (GPL) as
+ * published by the Free Software Foundation; either version 2 of the License,
+ * or(at your option) any later version.
+
+ * Code that uses any portion of the code in the org.opensourcephysics package
+ * or any subpackage (subdirectory) of this package must must also be be released
+ * under the GNU GPL license.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston MA 02111-1307 USA
+ * or view the license online at http://www.gnu.org/copyleft/gpl.html
+ *
+ * Copyright (c) 2007  The Open Source Physics project
+ *                     http://www.opensourcephysics.org
+ */
@@ -17,6 +17,32 @@ package org.opensourcephysics.numerics;
 public interface MultiVarFunction {
   public double evaluate(double[] x);
 
+  /**
+   * Evaluates the function at many points given as columns, so that point i has the
+   * variables x[0][i], x[1][i], ...  Implementations may override this method to evaluate
+   * the points faster than one at a time.
+   *
+   * If the result array is null, a new array with one element per point is allocated.
+   * Otherwise the result array is used and its length is the number of points.
+   *
+   * @param x the values of the variables, one column per variable
+   * @param result the array for the values or null
+   * @return the result array
+   */
+  public default double[] evaluate(double[][] x, double[] result) {
+    if(result==null) {
+      result = new double[(x.length==0) ? 0 : x[0].length];
+    }
+    double[] point = new double[x.length];
+    for(int i = 0; i<result.length; i++) {
+      for(int k = 0; k<point.length; k++) {
+        point[k] = x[k][i];
+      }
+      result[i] = evaluate(point);
+    }
+    return result;
+  }
+
 }
 
 /*
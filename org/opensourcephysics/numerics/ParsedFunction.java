@@ -42,7 +42,8 @@ public final class ParsedFunction implements Function {
     fStr = _fStr;
     SuryonoParser parser = null;
     parser = new SuryonoParser(fStr, var);
-    function = parser;
+    // a copy of the parsed function that threads can share, compiled if possible
+    function = parser.createExpression();
   }
 
   /**
@@ -56,6 +57,18 @@ public final class ParsedFunction implements Function {
     return function.evaluate(x);
   }
 
+  /**
+   * Evaluates the function at every element of x.
+   *
+   * @param x the values of the independent variable
+   * @param result the array for the values or null
+   *
+   * @return the values of the function
+   */
+  public double[] evaluate(double[] x, double[] result) {
+    return function.evaluate(x, result);
+  }
+
   /**
    * Represents the function as a string.
    *
@@ -33,7 +33,8 @@ public final class ParsedMultiVarFunction implements MultiVarFunction {
     fStr = _fStr;
     SuryonoParser parser = null;
     parser = new SuryonoParser(fStr, var);
-    function = parser;
+    // a copy of the parsed function that threads can share, compiled if possible
+    function = parser.createExpression();
     functionNames = parser.getFunctionNames();
   }
 
@@ -48,6 +49,18 @@ public final class ParsedMultiVarFunction implements MultiVarFunction {
     return function.evaluate(x);
   }
 
+  /**
+   * Evaluates the function at the points given by columns of the independent variables.
+   *
+   * @param x the values of the independent variables, one column per variable
+   * @param result the array for the values or null
+   *
+   * @return the values of the function
+   */
+  public double[] evaluate(double[][] x, double[] result) {
+    return function.evaluate(x, result);
+  }
+
   /**
    * Represents the function as a string.
    *
@@ -381,6 +381,31 @@ public class Polynomial implements Function {
     return answer;
   }
 
+  /**
+   * Evaluates the polynomial for every element of x.
+   *
+   * If the result array is null, a new array is allocated.  Otherwise the result array is used.
+   * @param x double[]  values at which the polynomial is evaluated
+   * @param result double[]  the array for the polynomial values or null
+   * @return double[] polynomial values.
+   */
+  public double[] evaluate(double[] x, double[] result) {
+    if(result==null) {
+      result = new double[x.length];
+    }
+    double[] c = coefficients;
+    int m = c.length-1;
+    for(int i = 0; i<x.length; i++) {
+      double xi = x[i];
+      double answer = c[m];
+      for(int n = m; n>0; ) {
+        answer = answer*xi+c[--n];
+      }
+      result[i] = answer;
+    }
+    return result;
+  }
+
   /**
    * Returns the value and the derivative of this polynomial
    * for the specified variable value in an array of two elements
@@ -0,0 +1,276 @@
+/*
+ * Open Source Physics software is free software as described near the bottom of this code file.
+ *
+ * For additional information and documentation on Open Source Physics please see:
+ * <http://www.opensourcephysics.org/>
+ */
+
+package org.opensourcephysics.numerics;
+import java.util.Arrays;
+
+/**
+ * RobustLeastSquares fits a least-squares function with a robust loss by iteratively
+ * reweighted Levenberg-Marquardt minimizations.
+ *
+ * The loss of a residual r with scale c is c^2 rho((r/c)^2), where rho(s) is s for the
+ * squared loss, s for s<=1 and 2 sqrt(s)-1 otherwise for the Huber loss, ln(1+s) for the
+ * Cauchy loss and 2(sqrt(1+s)-1) for the soft L1 loss.  Every pass weights the residuals
+ * by rho'(s) at the current parameters and minimizes the weighted sum of squares, so
+ * outliers lose their influence without being removed.  The passes stop when the weights
+ * no longer change.
+ *
+ * Unless a scale is set, c is estimated at every pass from the median absolute residual,
+ * multiplied by the usual tuning constant of the loss.  Residuals that are already
+ * weighted by the function, for example by measurement errors, are taken as they are.
+ */
+public class RobustLeastSquares {
+  /** Loss: the ordinary sum of squares. */
+  public static final int LOSS_SQUARED = 0;
+  /** Loss: quadratic for small residuals and linear for large ones. */
+  public static final int LOSS_HUBER = 1;
+  /** Loss: logarithmic for large residuals, which rejects gross outliers. */
+  public static final int LOSS_CAUCHY = 2;
+  /** Loss: a smooth approximation of the absolute residual for large residuals. */
+  public static final int LOSS_SOFT_L1 = 3;
+  private int loss;
+  private double scale;    //fixed scale or 0 to estimate it
+  private int maxPasses = 20;
+  private double weightTolerance = 1.e-4;
+  private double[] weights; //of the last pass
+  private int passes;
+  private double lastScale;
+
+  /**
+   * Constructs a robust fit with the given loss.
+   *
+   * @param loss LOSS_SQUARED, LOSS_HUBER, LOSS_CAUCHY or LOSS_SOFT_L1
+   */
+  public RobustLeastSquares(int loss) {
+    this.loss = loss;
+  }
+
+  /*
+   *  Inputs
+   *
+   *   lm  - the minimizer used for every pass
+   *
+   *   f   - the residuals of m parameters
+   *
+   *   x   - the initial guess, replaced by the fitted parameters
+   *
+   *   max - the maximum iteration number of every pass
+   *
+   *   tol - the tolerance level
+   *
+   *  Returns the robust loss at the fitted parameters.
+   */
+  public double minimize(LevenbergMarquardt lm, LeastSquaresFunction f, double[] x, int max, double tol) {
+    int n = f.getResidualCount();
+    double[] r = new double[n];
+    weights = new double[n];
+    Arrays.fill(weights, 1);
+    WeightedLeastSquares weighted = WeightedLeastSquares.wrap(f, weights);
+    double[] previous = new double[n];
+    passes = 0;
+    if(loss==LOSS_SQUARED) {
+      lm.minimize(f, x, max, tol);
+      passes = 1;
+      lastScale = 1;
+      return lm.getMinimumValue();
+    }
+    while(true) {
+      f.evaluate(x, r);
+      lastScale = (scale>0) ? scale : estimateScale(r);
+      double change = 0;
+      for(int i = 0; i<n; i++) {
+        double u = r[i]/lastScale;
+        weights[i] = weight(loss, u*u);
+        change = Math.max(change, Math.abs(weights[i]-previous[i]));
+      }
+      if(((passes>0)&&(change<weightTolerance))||(passes>=maxPasses)) {
+        return cost(r);
+      }
+      System.arraycopy(weights, 0, previous, 0, n);
+      weighted.setWeights(weights);
+      lm.minimize(weighted, x, max, tol);
+      passes++;
+      if(lm.getTerminationReason()==LevenbergMarquardt.STOPPED) { //cancelled
+        f.evaluate(x, r);
+        return cost(r);
+      }
+    }
+  }
+
+  /**
+   * Gets the scale of the residuals as the median absolute residual divided by 0.6745,
+   * the value for normally distributed residuals, times the tuning constant of the loss.
+   * The mean absolute residual is used when more than half of the residuals vanish.
+   */
+  private double estimateScale(double[] r) {
+    double[] a = new double[r.length];
+    for(int i = 0; i<r.length; i++) {
+      a[i] = Math.abs(r[i]);
+    }
+    Arrays.sort(a);
+    int n = a.length;
+    double median = ((n&1)==1) ? a[n/2] : 0.5*(a[n/2-1]+a[n/2]);
+    double sigma = median/0.6745;
+    if(sigma==0) { //most residuals vanish so use the mean absolute residual
+      double sum = 0;
+      for(int i = 0; i<n; i++) {
+        sum += a[i];
+      }
+      sigma = 1.2533*sum/n; //sqrt(pi/2) times the mean for normally distributed residuals
+      if(sigma==0) {
+        return 1; //every residual vanishes so any scale will do
+      }
+    }
+    switch(loss) {
+       case LOSS_HUBER :
+         return 1.345*sigma;
+       case LOSS_CAUCHY :
+         return 2.385*sigma;
+       default :
+         return sigma;
+    }
+  }
+
+  /**
+   * Gets the weight rho'(s) of a residual with s = (r/c)^2.
+   *
+   * @param loss the loss
+   * @param s the squared scaled residual
+   * @return the weight
+   */
+  public static double weight(int loss, double s) {
+    switch(loss) {
+       case LOSS_HUBER :
+         return(s<=1) ? 1 : 1/Math.sqrt(s);
+       case LOSS_CAUCHY :
+         return 1/(1+s);
+       case LOSS_SOFT_L1 :
+         return 1/Math.sqrt(1+s);
+       default :
+         return 1;
+    }
+  }
+
+  /**
+   * Gets rho(s) for a squared scaled residual s.
+   *
+   * @param loss the loss
+   * @param s the squared scaled residual
+   * @return the loss
+   */
+  public static double rho(int loss, double s) {
+    switch(loss) {
+       case LOSS_HUBER :
+         return(s<=1) ? s : 2*Math.sqrt(s)-1;
+       case LOSS_CAUCHY :
+         return Math.log1p(s);
+       case LOSS_SOFT_L1 :
+         return 2*(Math.sqrt(1+s)-1);
+       default :
+         return s;
+    }
+  }
+
+  private double cost(double[] r) {
+    double sum = 0;
+    for(int i = 0; i<r.length; i++) {
+      double u = r[i]/lastScale;
+      sum += rho(loss, u*u);
+    }
+    return lastScale*lastScale*sum;
+  }
+
+  /**
+   * Sets the loss.
+   *
+   * @param loss LOSS_SQUARED, LOSS_HUBER, LOSS_CAUCHY or LOSS_SOFT_L1
+   */
+  public void setLoss(int loss) {
+    this.loss = loss;
+  }
+
+  /**
+   * Gets the loss.
+   *
+   * @return int
+   */
+  public int getLoss() {
+    return loss;
+  }
+
+  /**
+   * Sets the scale of the residuals at which the loss departs from the squared loss.
+   *
+   * @param scale the scale, or 0 to estimate it from the residuals at every pass
+   */
+  public void setScale(double scale) {
+    this.scale = scale;
+  }
+
+  /**
+   * Gets the scale used by the last pass.
+   *
+   * @return double
+   */
+  public double getScale() {
+    return lastScale;
+  }
+
+  /**
+   * Sets the maximum number of reweighted minimizations.
+   *
+   * @param passes int
+   */
+  public void setMaxPasses(int passes) {
+    maxPasses = Math.max(1, passes);
+  }
+
+  /**
+   * Gets the number of reweighted minimizations of the last fit.
+   *
+   * @return int
+   */
+  public int getPasses() {
+    return passes;
+  }
+
+  /**
+   * Gets the robust weight of every residual at the fitted parameters.  Outliers have
+   * small weights.
+   *
+   * @return the weights
+   */
+  public double[] getWeights() {
+    return weights;
+  }
+
+}
+
+
+/*
+ * Open Source Physics software is free software; you can redistribute
+ * it and/or modify it under the terms of the GNU General Public License (GPL) as
+ * published by the Free Software Foundation; either version 2 of the License,
+ * or(at your option) any later version.
+
+ * Code that uses any portion of the code in the org.opensourcephysics package
+ * or any subpackage (subdirectory) of this package must must also be be released
+ * under the GNU GPL license.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston MA 02111-1307 USA
+ * or view the license online at http://www.gnu.org/copyleft/gpl.html
+ *
+ * Copyright (c) 2007  The Open Source Physics project
+ *                     http://www.opensourcephysics.org
+ */
@@ -163,6 +163,30 @@ public class Root {
     return Double.NaN; // did not converve in max iterations
   }
 
+  /**
+   * Implements Newton's method for finding the root of a function.
+   * The derivative is exact because the function is written with Dual arithmetic.
+   *
+   * @param f DualFunction the function
+   * @param x double guess the root
+   * @param tol double computation tolerance
+   * @return double the root or NaN if root not found.
+   */
+  public static double newtonDual(final DualFunction f, double x, final double tol) {
+    int count = 0;
+    while(count<MAX_ITERATIONS) {
+      double xold = x; // save the old value to test for convergence
+      Dual y = f.evaluate(Dual.variable(x));
+      x -= y.value()/y.derivative(0);
+      if(Util.relativePrecision(Math.abs(x-xold), x)<tol) {
+        return x;
+      }
+      count++;
+    }
+    NumericsLog.fine(count+" newton root trials made - no convergence achieved"); //$NON-NLS-1$
+    return Double.NaN; // did not converve in max iterations
+  }
+
   /**
    * Implements Newton's method for finding the root of a function.
    *
@@ -320,6 +344,22 @@ public class Root {
    *   @return double the error
    */
   public static double newtonMultivar(VectorFunction feqs, double xx[], int max, double tol) {
+    return newtonMultivar(feqs, null, xx, max, tol);
+  }
+
+  /*
+   *  Inputs
+   *   feqs - the equations written with Dual arithmetic, so that the Jacobian is exact
+   *   xx - the array containing the guess to the solutions
+   *   max - the maximum iteration number
+   *   tol - the tolerance level
+   *   @return double the error
+   */
+  public static double newtonMultivarDual(DualVectorFunction feqs, double xx[], int max, double tol) {
+    return newtonMultivar(null, feqs, xx, max, tol);
+  }
+
+  private static double newtonMultivar(VectorFunction feqs, DualVectorFunction dual, double xx[], int max, double tol) {
     int Ndim = xx.length;
     double[] xxn = new double[Ndim];
     double[] F = new double[Ndim];
@@ -331,9 +371,14 @@ public class Root {
     //Needs a good guess - use one found by a grid method if one is not available
     while((err>tol*1.e-6)&&(relerr>tol*1.e-6)&&(Iterations<max)) {
       Iterations++;
-      LUPDecomposition lu = new LUPDecomposition(getJacobian(feqs, Ndim, xx, tol/100.));
+      LUPDecomposition lu;
+      if(dual==null) {
+        lu = new LUPDecomposition(getJacobian(feqs, Ndim, xx, tol/100.));
+        F = feqs.evaluate(xx, F); //the functions
+      } else {
+        lu = new LUPDecomposition(AutoDiff.jacobian(dual, xx, F, null)); //the functions and the exact Jacobian
+      }
       //use the LUPDecomposition's solve method
-      F = feqs.evaluate(xx, F); //the functions
       xxn = lu.solve(F);        //the corrections
       for(int i = 0; i<Ndim; i++) {
         xxn[i] = xx[i]-xxn[i];  //new guesses
@@ -0,0 +1,62 @@
+/*
+ * Open Source Physics software is free software as described near the bottom of this code file.
+ *
+ * For additional information and documentation on Open Source Physics please see:
+ * <http://www.opensourcephysics.org/>
+ */
+
+package org.opensourcephysics.numerics;
+
+/**
+ * SparseLeastSquaresFunction is a LeastSquaresFunction whose residuals each depend on a
+ * few of the parameters, such as a global fit of several data series in which some
+ * parameters are shared by every series and the others belong to a single series.
+ *
+ * The LevenbergMarquardt minimizer uses the pattern to evaluate finite difference
+ * derivatives of unrelated parameters together and to solve the normal equations by
+ * eliminating the parameters local to each series before the shared ones.
+ */
+public interface SparseLeastSquaresFunction extends LeastSquaresFunction {
+  /**
+   * Gets the sparsity pattern of the Jacobian.  Row i lists the parameters that residual i
+   * depends on; every other derivative of the residual must be zero.
+   *
+   * @return int[][] the pattern with getResidualCount() rows
+   */
+  public int[][] getJacobianPattern();
+
+  /**
+   * Gets the parameters that are shared by many residuals.  The remaining parameters are
+   * grouped into blocks of parameters that appear in the same residuals and are eliminated
+   * block by block, so the shared parameters should be those that link the blocks.
+   *
+   * @return int[] the shared parameters, possibly empty
+   */
+  public int[] getSharedParameters();
+
+}
+
+
+/*
+ * Open Source Physics software is free software; you can redistribute
+ * it and/or modify it under the terms of the GNU General Public License (GPL) as
+ * published by the Free Software Foundation; either version 2 of the License,
+ * or(at your option) any later version.
+
+ * Code that uses any portion of the code in the org.opensourcephysics package
+ * or any subpackage (subdirectory) of this package must must also be be released
+ * under the GNU GPL license.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston MA 02111-1307 USA
+ * or view the license online at http://www.gnu.org/copyleft/gpl.html
+ *
+ * Copyright (c) 2007  The Open Source Physics project
+ *                     http://www.opensourcephysics.org
+ */
@@ -0,0 +1,446 @@
+/*
+ * Open Source Physics software is free software as described near the bottom of this code file.
+ *
+ * For additional information and documentation on Open Source Physics please see:
+ * <http://www.opensourcephysics.org/>
+ */
+
+package org.opensourcephysics.numerics;
+import java.util.Arrays;
+
+/**
+ * SparseNormalEquations evaluates the Jacobian of a SparseLeastSquaresFunction and solves
+ * the damped Gauss-Newton normal equations without forming dense m by m matrices.
+ *
+ * Columns of the Jacobian that share no row are given the same color and are found
+ * together from a single evaluation of the residuals, so a finite difference Jacobian
+ * costs one evaluation per color instead of one per parameter.
+ *
+ * The normal equations have the arrowhead form
+ *
+ *   | A  W | |hl|   |Dl|
+ *   | W' C | |hs| = |Ds|
+ *
+ * where A is block diagonal in the local parameters and C couples the shared parameters.
+ * The local parameters are eliminated block by block, leaving the Schur complement
+ * system (C - W' A^-1 W) hs = Ds - W' A^-1 Dl for the shared ones.
+ */
+class SparseNormalEquations {
+  final int m, n;
+  final int[][] pattern; //the parameters of every residual
+  final double[][] values; //the Jacobian at the positions of the pattern
+  //coloring
+  final int[][] groups; //the parameters of every color
+  final int[][] colRows, colPos; //the rows of every parameter and its position in them
+  //structure
+  final int[] shared;
+  final int[][] blocks; //the local parameters of every block
+  final int[] sharedIndex, blockOf, localIndex; //-1 if not shared or not local
+  //normal equations, H = 2 J^T J
+  final double[][][] A, Wt; //per block: A and W transposed
+  final double[][] C;
+  //workspace of the solve
+  final double[][][] Ad, Yt;
+  final double[][] y;
+  final double[][] S;
+  final double[] rhs, hs;
+  final CholeskyDecomposition[] blockSolvers;
+  final CholeskyDecomposition reducedSolver;
+
+  /**
+   * Returns true if these equations were built for the same residual count, Jacobian
+   * pattern and shared parameters as f has with m parameters, so that they can be reused.
+   */
+  boolean matches(SparseLeastSquaresFunction f, int m) {
+    return(this.m==m)&&(n==f.getResidualCount())&&Arrays.deepEquals(pattern, f.getJacobianPattern())
+          &&Arrays.equals(shared, f.getSharedParameters());
+  }
+
+  SparseNormalEquations(SparseLeastSquaresFunction f, int m) {
+    this.m = m;
+    n = f.getResidualCount();
+    int[][] rows = f.getJacobianPattern();
+    if(rows.length!=n) {
+      throw new IllegalArgumentException("The Jacobian pattern must have one row per residual."); //$NON-NLS-1$
+    }
+    pattern = new int[n][]; //a copy so that matches() sees changes the function makes
+    for(int i = 0; i<n; i++) {
+      pattern[i] = rows[i].clone();
+    }
+    values = new double[n][];
+    int[] count = new int[m];
+    for(int i = 0; i<n; i++) {
+      values[i] = new double[pattern[i].length];
+      for(int p = 0; p<pattern[i].length; p++) {
+        count[pattern[i][p]]++;
+      }
+    }
+    colRows = new int[m][];
+    colPos = new int[m][];
+    for(int k = 0; k<m; k++) {
+      colRows[k] = new int[count[k]];
+      colPos[k] = new int[count[k]];
+      count[k] = 0;
+    }
+    for(int i = 0; i<n; i++) {
+      for(int p = 0; p<pattern[i].length; p++) {
+        int k = pattern[i][p];
+        colRows[k][count[k]] = i;
+        colPos[k][count[k]] = p;
+        count[k]++;
+      }
+    }
+    groups = color();
+    //shared parameters
+    shared = f.getSharedParameters().clone();
+    sharedIndex = new int[m];
+    Arrays.fill(sharedIndex, -1);
+    for(int s = 0; s<shared.length; s++) {
+      sharedIndex[shared[s]] = s;
+    }
+    //blocks of local parameters that appear in the same residuals
+    int[] parent = new int[m];
+    for(int k = 0; k<m; k++) {
+      parent[k] = k;
+    }
+    for(int i = 0; i<n; i++) {
+      int first = -1;
+      for(int p = 0; p<pattern[i].length; p++) {
+        int k = pattern[i][p];
+        if(sharedIndex[k]>=0) {
+          continue;
+        }
+        if(first<0) {
+          first = k;
+        } else {
+          parent[find(parent, k)] = find(parent, first);
+        }
+      }
+    }
+    blockOf = new int[m];
+    localIndex = new int[m];
+    int[] blockOfRoot = new int[m];
+    Arrays.fill(blockOfRoot, -1);
+    int nb = 0;
+    for(int k = 0; k<m; k++) {
+      blockOf[k] = localIndex[k] = -1;
+      if(sharedIndex[k]>=0) {
+        continue;
+      }
+      int root = find(parent, k);
+      if(blockOfRoot[root]<0) {
+        blockOfRoot[root] = nb++;
+      }
+      blockOf[k] = blockOfRoot[root];
+    }
+    int[] size = new int[nb];
+    for(int k = 0; k<m; k++) {
+      if(blockOf[k]>=0) {
+        localIndex[k] = size[blockOf[k]]++;
+      }
+    }
+    blocks = new int[nb][];
+    for(int b = 0; b<nb; b++) {
+      blocks[b] = new int[size[b]];
+    }
+    for(int k = 0; k<m; k++) {
+      if(blockOf[k]>=0) {
+        blocks[blockOf[k]][localIndex[k]] = k;
+      }
+    }
+    int g = shared.length;
+    A = new double[nb][][];
+    Ad = new double[nb][][];
+    Wt = new double[nb][][];
+    Yt = new double[nb][][];
+    y = new double[nb][];
+    blockSolvers = new CholeskyDecomposition[nb];
+    for(int b = 0; b<nb; b++) {
+      A[b] = new double[size[b]][size[b]];
+      Ad[b] = new double[size[b]][size[b]];
+      Wt[b] = new double[g][size[b]];
+      Yt[b] = new double[g][size[b]];
+      y[b] = new double[size[b]];
+      blockSolvers[b] = new CholeskyDecomposition(size[b]);
+    }
+    C = new double[g][g];
+    S = new double[g][g];
+    rhs = new double[g];
+    hs = new double[g];
+    reducedSolver = new CholeskyDecomposition(g);
+  }
+
+  private static int find(int[] parent, int k) {
+    while(parent[k]!=k) {
+      parent[k] = parent[parent[k]];
+      k = parent[k];
+    }
+    return k;
+  }
+
+  /**
+   * Colors the columns greedily so that columns of the same color share no row.
+   */
+  private int[][] color() {
+    int[] color = new int[m];
+    int[] mark = new int[m+1]; //the last column that excluded each color
+    Arrays.fill(mark, -1);
+    int colors = 0;
+    for(int k = 0; k<m; k++) {
+      for(int j = 0; j<colRows[k].length; j++) {
+        int[] row = pattern[colRows[k][j]];
+        for(int p = 0; p<row.length; p++) {
+          if(row[p]<k) {
+            mark[color[row[p]]] = k;
+          }
+        }
+      }
+      int c = 0;
+      while(mark[c]==k) {
+        c++;
+      }
+      color[k] = c;
+      colors = Math.max(colors, c+1);
+    }
+    int[] size = new int[colors];
+    for(int k = 0; k<m; k++) {
+      size[color[k]]++;
+    }
+    int[][] groups = new int[colors][];
+    for(int c = 0; c<colors; c++) {
+      groups[c] = new int[size[c]];
+      size[c] = 0;
+    }
+    for(int k = 0; k<m; k++) {
+      groups[color[k]][size[color[k]]++] = k;
+    }
+    return groups;
+  }
+
+  /**
+   * Gets the number of colors, the residual evaluations of a finite difference Jacobian.
+   */
+  int getColorCount() {
+    return groups.length;
+  }
+
+  /**
+   * Evaluates the Jacobian at x from the residuals r with forward differences of step dx,
+   * moving all the parameters of a color at once.  xp and rp are scratch arrays.
+   *
+   * @return the number of residual evaluations
+   */
+  int jacobian(LeastSquaresFunction f, double[] x, double[] r, double[] dx, double[] xp, double[] rp) {
+    System.arraycopy(x, 0, xp, 0, m);
+    for(int c = 0; c<groups.length; c++) {
+      int[] group = groups[c];
+      for(int j = 0; j<group.length; j++) {
+        xp[group[j]] = x[group[j]]+dx[group[j]];
+      }
+      f.evaluate(xp, rp);
+      for(int j = 0; j<group.length; j++) {
+        int k = group[j];
+        int[] rows = colRows[k], pos = colPos[k];
+        for(int q = 0; q<rows.length; q++) {
+          values[rows[q]][pos[q]] = (rp[rows[q]]-r[rows[q]])/dx[k];
+        }
+        xp[k] = x[k]; //reset
+      }
+    }
+    return groups.length;
+  }
+
+  /**
+   * Takes the Jacobian from a dense analytic Jacobian.
+   */
+  void jacobian(double[][] J) {
+    for(int i = 0; i<n; i++) {
+      for(int p = 0; p<pattern[i].length; p++) {
+        values[i][p] = J[i][pattern[i][p]];
+      }
+    }
+  }
+
+  /**
+   * Builds the blocks of H = 2 J^T J and the negative gradient D = -2 J^T r.
+   */
+  void build(double[] r, double[] D) {
+    for(int b = 0; b<blocks.length; b++) {
+      zero(A[b]);
+      zero(Wt[b]);
+    }
+    zero(C);
+    Arrays.fill(D, 0);
+    for(int i = 0; i<n; i++) {
+      int[] row = pattern[i];
+      double[] v = values[i];
+      for(int p = 0; p<row.length; p++) {
+        int k = row[p];
+        double Jik = v[p];
+        if(Jik==0) {
+          continue;
+        }
+        D[k] -= 2*Jik*r[i];
+        for(int q = 0; q<row.length; q++) {
+          int l = row[q];
+          double h = 2*Jik*v[q];
+          if(sharedIndex[k]>=0) {
+            if(sharedIndex[l]>=0) {
+              C[sharedIndex[k]][sharedIndex[l]] += h;
+            } else {
+              Wt[blockOf[l]][sharedIndex[k]][localIndex[l]] += h;
+            }
+          } else if(sharedIndex[l]<0) {
+            A[blockOf[k]][localIndex[k]][localIndex[l]] += h;
+          }
+        }
+      }
+    }
+  }
+
+  private static void zero(double[][] a) {
+    for(int i = 0; i<a.length; i++) {
+      Arrays.fill(a[i], 0);
+    }
+  }
+
+  private static double damp(double d, double Lambda, int damping) {
+    if(damping==LevenbergMarquardt.DAMPING_LEVENBERG) {
+      return d+Lambda;
+    }
+    return d+Lambda*((d>0) ? d : 1);
+  }
+
+  /**
+   * Solves the damped normal equations for the correction h by eliminating the blocks.
+   *
+   * @return false if a block or the Schur complement could not be factored
+   */
+  boolean solve(double Lambda, int damping, double[] D, double[] h) {
+    int g = shared.length;
+    for(int j = 0; j<g; j++) {
+      System.arraycopy(C[j], 0, S[j], 0, g);
+      S[j][j] = damp(C[j][j], Lambda, damping);
+      rhs[j] = D[shared[j]];
+    }
+    for(int b = 0; b<blocks.length; b++) {
+      int[] block = blocks[b];
+      int nb = block.length;
+      double[][] a = A[b], ad = Ad[b], wt = Wt[b], yt = Yt[b];
+      for(int i = 0; i<nb; i++) {
+        System.arraycopy(a[i], 0, ad[i], 0, nb);
+        ad[i][i] = damp(a[i][i], Lambda, damping);
+        y[b][i] = D[block[i]];
+      }
+      CholeskyDecomposition solver = blockSolvers[b];
+      if(!solver.decompose(ad)) {
+        return false;
+      }
+      solver.solve(y[b], y[b]);
+      for(int j = 0; j<g; j++) {
+        solver.solve(wt[j], yt[j]);
+      }
+      //subtract W' A^-1 W and W' A^-1 Dl
+      for(int j = 0; j<g; j++) {
+        double[] wj = wt[j];
+        double sum = 0;
+        for(int i = 0; i<nb; i++) {
+          sum += wj[i]*y[b][i];
+        }
+        rhs[j] -= sum;
+        for(int l = 0; l<g; l++) {
+          double[] yl = yt[l];
+          sum = 0;
+          for(int i = 0; i<nb; i++) {
+            sum += wj[i]*yl[i];
+          }
+          S[j][l] -= sum;
+        }
+      }
+    }
+    if(g>0) {
+      if(!reducedSolver.decompose(S)||(reducedSolver.solve(rhs, hs)==null)) {
+        return false;
+      }
+      for(int j = 0; j<g; j++) {
+        h[shared[j]] = hs[j];
+      }
+    }
+    //back substitute hl = A^-1 Dl - A^-1 W hs
+    for(int b = 0; b<blocks.length; b++) {
+      int[] block = blocks[b];
+      double[][] yt = Yt[b];
+      for(int i = 0; i<block.length; i++) {
+        double sum = y[b][i];
+        for(int j = 0; j<g; j++) {
+          sum -= yt[j][i]*hs[j];
+        }
+        h[block[i]] = sum;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Gets the reduction of the sum of squares predicted for the correction h,
+   * h.D - 0.5 h'Hh = h.D - |J h|^2.
+   */
+  double predictedReduction(double[] D, double[] h) {
+    double sum = 0;
+    for(int k = 0; k<m; k++) {
+      sum += h[k]*D[k];
+    }
+    for(int i = 0; i<n; i++) {
+      int[] row = pattern[i];
+      double[] v = values[i];
+      double Jhi = 0;
+      for(int p = 0; p<row.length; p++) {
+        Jhi += v[p]*h[row[p]];
+      }
+      sum -= Jhi*Jhi;
+    }
+    return sum;
+  }
+
+  /**
+   * Assembles the dense Hessian H = 2 J^T J, for example to find the covariance.
+   */
+  void getHessian(double[][] H) {
+    zero(H);
+    for(int i = 0; i<n; i++) {
+      int[] row = pattern[i];
+      double[] v = values[i];
+      for(int p = 0; p<row.length; p++) {
+        for(int q = 0; q<row.length; q++) {
+          H[row[p]][row[q]] += 2*v[p]*v[q];
+        }
+      }
+    }
+  }
+
+}
+
+
+/*
+ * Open Source Physics software is free software; you can redistribute
+ * it and/or modify it under the terms of the GNU General Public License (GPL) as
+ * published by the Free Software Foundation; either version 2 of the License,
+ * or(at your option) any later version.
+
+ * Code that uses any portion of the code in the org.opensourcephysics package
+ * or any subpackage (subdirectory) of this package must must also be be released
+ * under the GNU GPL license.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston MA 02111-1307 USA
+ * or view the license online at http://www.gnu.org/copyleft/gpl.html
+ *
+ * Copyright (c) 2007  The Open Source Physics project
+ *                     http://www.opensourcephysics.org
+ */
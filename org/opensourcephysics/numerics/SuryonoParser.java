@@ -78,19 +78,19 @@ public final class SuryonoParser extends MathExpParser {
   private char character;                          // current character
   // variables used during evaluating
   private boolean radian;                          // radian unit flag
-  private int numberindex;                         // pointer to numbers/constants bank
-  private double[] refvalue = null;                // value of references
+  private String[] codes;                          // postfix codes of the references and the function
+  private double[] constants;                      // numeric constants of the codes
+  private final Context context = new Context();   // state of evaluate()
   // private  static final int MAX_NUM     = 100;  // max numeric constants  // changed by W. Christian
   private static final int MAX_NUM = 200;          // max numeric constants
   // private  static final int NO_FUNCS      = 24;   // no. of built-in functions
   // changed from 24 function by W. Christian to add step and random function
-  private static final int NO_FUNCS = 26;          // no. of built-in functions
-  private static final int NO_EXT_FUNCS = 4;       // no. of extended functions
-  private static final int STACK_SIZE = 50;        // evaluation stack size
-  private double[] stack = new double[STACK_SIZE]; // moved by W. Christian from evaluate to global variables for speed
+  static final int NO_FUNCS = 26;                  // no. of built-in functions
+  static final int NO_EXT_FUNCS = 4;               // no. of extended functions
+  static final int STACK_SIZE = 50;        // evaluation stack size
   // constants
-  private static final double DEGTORAD = Math.PI/180;
-  private static final double LOG10 = Math.log(10);
+  static final double DEGTORAD = Math.PI/180;
+  static final double LOG10 = Math.log(10);
   // references - version 3.0
   private Hashtable<String, String> references = null;
   private Vector<String> refnames = null;
@@ -180,38 +180,38 @@ public final class SuryonoParser extends MathExpParser {
    */
   public static final int REF_NAME_EXPECTED = 15;
   // postfix codes
-  private static final int FUNC_OFFSET = 1000;
-  private static final int EXT_FUNC_OFFSET = FUNC_OFFSET+NO_FUNCS;
-  private static final int VAR_OFFSET = 2000;
-  private static final int REF_OFFSET = 3000;
-  private static final char PI_CODE = (char) 253;
-  private static final char E_CODE = (char) 254;
-  private static final char NUMERIC = (char) 255;
+  static final int FUNC_OFFSET = 1000;
+  static final int EXT_FUNC_OFFSET = FUNC_OFFSET+NO_FUNCS;
+  static final int VAR_OFFSET = 2000;
+  static final int REF_OFFSET = 3000;
+  static final char PI_CODE = (char) 253;
+  static final char E_CODE = (char) 254;
+  static final char NUMERIC = (char) 255;
   // Jump, followed by n : Displacement
-  private static final char JUMP_CODE = (char) 1;
+  static final char JUMP_CODE = (char) 1;
   // Relation less than (<)
-  private static final char LESS_THAN = (char) 2;
+  static final char LESS_THAN = (char) 2;
   // Relation greater than (>)
-  private static final char GREATER_THAN = (char) 3;
+  static final char GREATER_THAN = (char) 3;
   // Relation less than or equal (<=)
-  private static final char LESS_EQUAL = (char) 4;
+  static final char LESS_EQUAL = (char) 4;
   // Relation greater than or equal (>=)
-  private static final char GREATER_EQUAL = (char) 5;
+  static final char GREATER_EQUAL = (char) 5;
   // Relation not equal (<>)
-  private static final char NOT_EQUAL = (char) 6;
+  static final char NOT_EQUAL = (char) 6;
   // Relation equal (=)
-  private static final char EQUAL = (char) 7;
+  static final char EQUAL = (char) 7;
   // Conditional statement IF, followed by a conditional block :
   // * Displacement (Used to jump to condition FALSE code)
   // * Condition TRUE code
   // * Jump to next code outside conditional block
   // * Condition FALSE code
   // * ENDIF
-  private static final char IF_CODE = (char) 8;
-  private static final char ENDIF = (char) 9;
-  private static final char AND_CODE = (char) 10;  // Boolean AND
-  private static final char OR_CODE = (char) 11;   // Boolean OR
-  private static final char NOT_CODE = (char) 12;  // Boolean NOT
+  static final char IF_CODE = (char) 8;
+  static final char ENDIF = (char) 9;
+  static final char AND_CODE = (char) 10;  // Boolean AND
+  static final char OR_CODE = (char) 11;   // Boolean OR
+  static final char NOT_CODE = (char) 12;  // Boolean NOT
   // built in functions
   private String funcname[] = {
 		  "sin", "cos", "tan", "ln", "log", "abs", "int", "frac", "asin", "acos", "atan", "sinh", "cosh", "tanh", "asinh", "acosh", "atanh", "ceil", "floor", "round", "exp", "sqr", "sqrt", "sign", "step","random"                                       //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$ //$NON-NLS-7$ //$NON-NLS-8$ //$NON-NLS-9$ //$NON-NLS-10$ //$NON-NLS-11$ //$NON-NLS-12$ //$NON-NLS-13$ //$NON-NLS-14$ //$NON-NLS-15$ //$NON-NLS-16$ //$NON-NLS-17$ //$NON-NLS-18$ //$NON-NLS-19$ //$NON-NLS-20$ //$NON-NLS-21$ //$NON-NLS-22$ //$NON-NLS-23$ //$NON-NLS-24$ //$NON-NLS-25$ //$NON-NLS-26$
@@ -321,14 +321,20 @@ public final class SuryonoParser extends MathExpParser {
    * Sets the angle unit to radian. Default upon construction.
    */
   public void useRadian() {
-    radian = true;
+    if(!radian) {
+      radian = true;
+      prepareCodes(); // folded angles depend on the unit
+    }
   }
 
   /**
    * Sets the angle unit to degree.
    */
   public void useDegree() {
-    radian = false;
+    if(radian) {
+      radian = false;
+      prepareCodes(); // folded angles depend on the unit
+    }
   }
 
   /**
@@ -517,6 +523,33 @@ public final class SuryonoParser extends MathExpParser {
     }
     function = orgFunction;
     valid = (error==NO_ERROR);
+    prepareCodes();
+  }
+
+  /**
+   * Prepares the parsed code for evaluation.  Constants are folded, powers reduced and
+   * common subexpressions shared by an ExpressionOptimizer.
+   */
+  private void prepareCodes() {
+    codes = null;
+    constants = null;
+    if(!valid) {
+      return;
+    }
+    String[] parsed = new String[refnames.size()+1];
+    for(int i = 0; i<refnames.size(); i++) {
+      parsed[i] = references.get(refnames.elementAt(i));
+    }
+    parsed[refnames.size()] = postfix_code;
+    ExpressionOptimizer optimizer = new ExpressionOptimizer(number, radian);
+    codes = optimizer.optimize(parsed);
+    if(codes!=null) {
+      constants = optimizer.getConstants();
+    } else { // evaluate the code as parsed
+      codes = parsed;
+      constants = new double[num];
+      System.arraycopy(number, 0, constants, 0, num);
+    }
   }
 
   public double evaluate(double x, double y)
@@ -569,32 +602,41 @@ public final class SuryonoParser extends MathExpParser {
    * @return the result of the function
    */
   public double evaluate() {
-    int size = refnames.size();
-    double result;
     if(!valid) {
       error = UNCOMPILED_FUNCTION;
       return 0;
     }
-    error = NO_ERROR;
-    numberindex = 0;
+    context.vars = var_value;
+    double result = evaluate(codes, constants, radian, context);
+    error = context.error;
+    return result;
+  }
+
+  /**
+   * Evaluates the postfix codes of the references and the function.  The codes and the
+   * numbers are only read, so threads may evaluate the same codes if each one has its
+   * own context.
+   *
+   * @return the result of the function
+   */
+  static double evaluate(String[] codes, double[] number, boolean radian, Context context) {
+    int size = codes.length-1;
+    double result;
+    context.error = NO_ERROR;
+    context.numberindex = 0;
     if(size!=0) {
-      String orgPFC = postfix_code;
-      refvalue = new double[size];
-      for(int i = 0; i<refnames.size(); i++) {
-        String name = refnames.elementAt(i);
-        postfix_code = references.get(name);
-        result = evaluateSubFunction();
-        if(error!=NO_ERROR) {
-          postfix_code = orgPFC;
-          refvalue = null;
+      if((context.refvalue==null)||(context.refvalue.length!=size)) { // reused by later evaluations
+        context.refvalue = new double[size];
+      }
+      for(int i = 0; i<size; i++) {
+        result = evaluateSubFunction(codes[i], number, radian, context);
+        if(context.error!=NO_ERROR) {
           return result;
         }
-        refvalue[i] = result;
+        context.refvalue[i] = result;
       }
-      postfix_code = orgPFC;
     }
-    result = evaluateSubFunction();
-    refvalue = null;
+    result = evaluateSubFunction(codes[size], number, radian, context);
     // added by W. Christian to trap for NaN
     if(Double.isNaN(result)) {
       result = 0.0;
@@ -602,6 +644,39 @@ public final class SuryonoParser extends MathExpParser {
     return result;
   }
 
+  /**
+   * Compiles the parsed function to JVM bytecode.  The compiled function gives the same
+   * values as this parser but does not change when the parser is changed.
+   *
+   * @return the compiled function or null if it cannot be compiled
+   */
+  public CompiledExpression compile() {
+    if(!valid) {
+      return null;
+    }
+    return ExpressionCompiler.compile(codes, constants, var_count, radian);
+  }
+
+  /**
+   * Creates a copy of the parsed function that does not change when the parser is changed
+   * and that any number of threads may evaluate at once.  The copy is compiled if
+   * compiling is enabled and possible and otherwise interprets the postfix code with one
+   * context per thread.
+   *
+   * @return the function or null if no function has been parsed
+   */
+  public CompiledExpression createExpression() {
+    if(!valid) {
+      return null;
+    }
+    CompiledExpression expression = CompiledExpression.isEnabled() ? compile() : null;
+    if(expression==null) { // the codes and constants are replaced, not changed, by parsing
+      expression = new Interpreted(codes, constants, radian);
+      expression.variableCount = var_count;
+    }
+    return expression;
+  }
+
   /**
    * Gets error code of last operation.
    *
@@ -1244,8 +1319,10 @@ public final class SuryonoParser extends MathExpParser {
    * @return the function result
    * @param  function  the function index
    * @param  parameter the parameter to the function
+   * @param  radian    true if angles are in radians
+   * @param  context   the evaluation context
    */
-  private double builtInFunction(int function, double parameter) {
+  private static double builtInFunction(int function, double parameter, boolean radian, Context context) {
     switch(function) {
        case 0 :
          if(radian) {
@@ -1329,7 +1406,7 @@ public final class SuryonoParser extends MathExpParser {
        case 25 :
          return parameter*Math.random(); // added by W. Christian for random function
        default :
-         error = CODE_DAMAGED;
+         context.error = CODE_DAMAGED;
          return Double.NaN;
     }
   }
@@ -1341,8 +1418,9 @@ public final class SuryonoParser extends MathExpParser {
    * @param  function  the function index
    * @param  param1    the first parameter to the function
    * @param  param2    the second parameter to the function
+   * @param  context   the evaluation context
    */
-  private double builtInExtFunction(int function, double param1, double param2) {
+  private static double builtInExtFunction(int function, double param1, double param2, Context context) {
     switch(function) {
        case 0 :
          return Math.min(param1, param2);
@@ -1353,7 +1431,7 @@ public final class SuryonoParser extends MathExpParser {
        case 3 :
          return Math.atan2(param1, param2);
        default :
-         error = CODE_DAMAGED;
+         context.error = CODE_DAMAGED;
          return Double.NaN;
     }
   }
@@ -1362,9 +1440,15 @@ public final class SuryonoParser extends MathExpParser {
    * Evaluates subfunction.
    *
    * @return the result of the subfunction
+   * @param  postfix_code the postfix code of the subfunction
+   * @param  number       the numeric constants
+   * @param  radian       true if angles are in radians
+   * @param  context      the evaluation context
    */
-  private double evaluateSubFunction() {
-    // double stack[];  moved by W. Christian
+  static double evaluateSubFunction(String postfix_code, double[] number, boolean radian, Context context) {
+    double[] stack = context.stack;
+    double[] var_value = context.vars;
+    double[] refvalue = context.refvalue;
     int stack_pointer = -1;
     int code_pointer = 0;
     int destination;
@@ -1413,7 +1497,7 @@ public final class SuryonoParser extends MathExpParser {
              destination = code_pointer+postfix_code.charAt(code_pointer++);
              while(code_pointer<destination) {
                if(postfix_code.charAt(code_pointer++)==NUMERIC) {
-                 numberindex++;
+                 context.numberindex++;
                }
              }
              break;
@@ -1446,7 +1530,7 @@ public final class SuryonoParser extends MathExpParser {
                destination = code_pointer+postfix_code.charAt(code_pointer++);
                while(code_pointer<destination) {
                  if(postfix_code.charAt(code_pointer++)==NUMERIC) {
-                   numberindex++;
+                   context.numberindex++;
                  }
                }
              } else {
@@ -1475,7 +1559,7 @@ public final class SuryonoParser extends MathExpParser {
              stack[stack_pointer] = (stack[stack_pointer]==0.0) ? 1.0 : 0.0;
              break;
            case NUMERIC :
-             stack[++stack_pointer] = number[numberindex++];
+             stack[++stack_pointer] = number[context.numberindex++];
              break;
            case PI_CODE :
              stack[++stack_pointer] = Math.PI;
@@ -1489,25 +1573,113 @@ public final class SuryonoParser extends MathExpParser {
              } else if(code>=VAR_OFFSET) {
                stack[++stack_pointer] = var_value[code-VAR_OFFSET];
              } else if(code>=EXT_FUNC_OFFSET) {
-               stack[stack_pointer-1] = builtInExtFunction(code-EXT_FUNC_OFFSET, stack[stack_pointer-1], stack[stack_pointer]);
+               stack[stack_pointer-1] = builtInExtFunction(code-EXT_FUNC_OFFSET, stack[stack_pointer-1], stack[stack_pointer], context);
                stack_pointer--;
              } else if(code>=FUNC_OFFSET) {
-               stack[stack_pointer] = builtInFunction(code-FUNC_OFFSET, stack[stack_pointer]);
+               stack[stack_pointer] = builtInFunction(code-FUNC_OFFSET, stack[stack_pointer], radian, context);
              } else {
-               error = CODE_DAMAGED;
+               context.error = CODE_DAMAGED;
                return Double.NaN;
              }
         }
       } catch(ArrayIndexOutOfBoundsException oe) {
-        error = STACK_OVERFLOW;
+        context.error = STACK_OVERFLOW;
         return Double.NaN;
       } catch(NullPointerException ne) {
-        error = CODE_DAMAGED;
+        context.error = CODE_DAMAGED;
         return Double.NaN;
       }
     }
   }
 
+  /**
+   * Context holds the state of an evaluation.  Evaluations with different contexts do not
+   * interfere, so the same postfix code can be evaluated by several threads at once.
+   */
+  static final class Context {
+    final double[] stack = new double[STACK_SIZE];
+    final double[] scalar = new double[1];
+    double[] vars;
+    double[] refvalue;
+    int numberindex;
+    int error;
+
+  }
+
+  /**
+   * Interpreted evaluates a copy of the postfix code of a parser with one context per
+   * thread.  It is created when the function is not compiled.
+   */
+  static final class Interpreted extends CompiledExpression {
+    private final String[] codes;
+    private final double[] number;
+    private final boolean radian;
+    private final ThreadLocal<Context> contexts = new ThreadLocal<Context>() {
+      protected Context initialValue() {
+        return new Context();
+      }
+
+    };
+
+    Interpreted(String[] codes, double[] number, boolean radian) {
+      this.codes = codes;
+      this.number = number;
+      this.radian = radian;
+    }
+
+    protected double compute(double[] v) {
+      Context context = contexts.get();
+      context.vars = v;
+      double result = SuryonoParser.evaluate(codes, number, radian, context);
+      context.vars = null;
+      return result;
+    }
+
+    protected double compute(double x) {
+      Context context = contexts.get();
+      context.scalar[0] = x;
+      context.vars = context.scalar;
+      return SuryonoParser.evaluate(codes, number, radian, context);
+    }
+
+    public double[] evaluate(double[] x, double[] result) {
+      if(variableCount!=1) {
+        return super.evaluate(x, result);
+      }
+      if(result==null) {
+        result = new double[x.length];
+      }
+      Context context = contexts.get(); // one lookup for the array
+      context.vars = context.scalar;
+      for(int i = 0; i<x.length; i++) {
+        context.scalar[0] = x[i];
+        result[i] = SuryonoParser.evaluate(codes, number, radian, context);
+      }
+      return result;
+    }
+
+    public double[] evaluate(double[][] x, double[] result) {
+      if(x.length!=variableCount) {
+        return super.evaluate(x, result);
+      }
+      if(result==null) {
+        result = new double[(x.length==0) ? 0 : x[0].length];
+      }
+      Context context = contexts.get(); // one lookup for the array
+      double[] point = new double[variableCount];
+      context.vars = point;
+      for(int i = 0; i<result.length; i++) {
+        for(int k = 0; k<point.length; k++) {
+          point[k] = x[k][i];
+        }
+        result[i] = SuryonoParser.evaluate(codes, number, radian, context);
+      }
+      context.vars = null;
+      return result;
+    }
+
+  }
+
 }
 
 /*
@@ -22,8 +22,13 @@ public final class Util {
   /** The default precision for numerical analysis. */
   public static final double defaultNumericalPrecision = Math.sqrt(Double.MIN_VALUE);
 
-  /** Parser for simple arithmetic expressions. */
-  private static SuryonoParser parser = new SuryonoParser(0);     // parser without variables
+  /** Parsers for simple arithmetic expressions, one per thread. */
+  private static final ThreadLocal<SuryonoParser> parsers = new ThreadLocal<SuryonoParser>() {
+    protected SuryonoParser initialValue() {
+      return new SuryonoParser(0); // parser without variables
+    }
+
+  };
   // standard output formats
   static DecimalFormat format2 = new DecimalFormat("#0.00");      //$NON-NLS-1$
   static DecimalFormat format3 = new DecimalFormat("#0.000");     //$NON-NLS-1$
@@ -140,9 +145,9 @@ public final class Util {
     double x = start;
     for(int i = 0; i<n; i++) {
       data[0][i] = x;
-      data[1][i] = f.evaluate(x);
       x += dx;
     }
+    f.evaluate(data[0], data[1]);
     return data;
   }
 
@@ -163,10 +168,10 @@ public final class Util {
     }
     double x = start;
     for(int i = 0; i<n; i++) {
-      data[i] = f.evaluate(x);
+      data[i] = x;
       x += dx;
     }
-    return data;
+    return f.evaluate(data, data); // evaluated in place
   }
 
   /**
@@ -240,7 +245,8 @@ public final class Util {
    * @param str String
    * @return double
    */
-  public static synchronized double evalMath(String str) {
+  public static double evalMath(String str) {
+    SuryonoParser parser = parsers.get();
     try {
       parser.parse(str);
       return parser.evaluate();
@@ -0,0 +1,167 @@
+/*
+ * Open Source Physics software is free software as described near the bottom of this code file.
+ *
+ * For additional information and documentation on Open Source Physics please see:
+ * <http://www.opensourcephysics.org/>
+ */
+
+package org.opensourcephysics.numerics;
+
+/**
+ * WeightedLeastSquares multiplies the residuals of a least-squares function by the square
+ * roots of per-point weights, so that the weighted sum of squares sum w[i]*r[i]^2 is
+ * minimized.  Weights of 1/sigma^2 from measurement errors give the chi-squared.
+ *
+ * Use wrap to keep the analytic Jacobian or the design matrix of the wrapped function.
+ */
+public class WeightedLeastSquares implements LeastSquaresFunction {
+  final LeastSquaresFunction f;
+  final double[] sqrtWeights;
+
+  /**
+   * Constructs a weighted function.  Minimizers will use finite difference derivatives;
+   * use wrap to keep analytic ones.
+   *
+   * @param f the residual function
+   * @param weights one non-negative weight per residual
+   */
+  public WeightedLeastSquares(LeastSquaresFunction f, double[] weights) {
+    this.f = f;
+    sqrtWeights = new double[f.getResidualCount()];
+    setWeights(weights);
+  }
+
+  /**
+   * Wraps a function in a weighted function that is a DifferentiableLeastSquaresFunction
+   * or a LinearLeastSquaresFunction whenever the function is.
+   *
+   * @param f the residual function
+   * @param weights one non-negative weight per residual
+   * @return the weighted function
+   */
+  public static WeightedLeastSquares wrap(LeastSquaresFunction f, double[] weights) {
+    if(f instanceof LinearLeastSquaresFunction) {
+      return new Linear(f, weights);
+    }
+    if(f instanceof DifferentiableLeastSquaresFunction) {
+      return new Differentiable(f, weights);
+    }
+    return new WeightedLeastSquares(f, weights);
+  }
+
+  /**
+   * Sets the weights.  Weights may be changed between minimizations of the same function.
+   *
+   * @param weights one non-negative weight per residual
+   */
+  public void setWeights(double[] weights) {
+    if(weights.length!=sqrtWeights.length) {
+      throw new IllegalArgumentException("There must be one weight per residual."); //$NON-NLS-1$
+    }
+    for(int i = 0; i<weights.length; i++) {
+      sqrtWeights[i] = Math.sqrt(weights[i]);
+    }
+  }
+
+  /**
+   * Gets the unweighted function.
+   *
+   * @return the function
+   */
+  public LeastSquaresFunction getFunction() {
+    return f;
+  }
+
+  public int getResidualCount() {
+    return sqrtWeights.length;
+  }
+
+  public double[] evaluate(double[] x, double[] r) {
+    r = f.evaluate(x, r);
+    for(int i = 0; i<sqrtWeights.length; i++) {
+      r[i] *= sqrtWeights[i];
+    }
+    return r;
+  }
+
+  public double evaluate(double[] x) {
+    return LevenbergMarquardt.sumOfSquares(evaluate(x, new double[sqrtWeights.length]));
+  }
+
+  /**
+   * Differentiable weights the rows of the analytic Jacobian.
+   */
+  static class Differentiable extends WeightedLeastSquares implements DifferentiableLeastSquaresFunction {
+    Differentiable(LeastSquaresFunction f, double[] weights) {
+      super(f, weights);
+    }
+
+    public double[][] jacobian(double[] x, double[][] jac) {
+      jac = ((DifferentiableLeastSquaresFunction) f).jacobian(x, jac);
+      for(int i = 0; i<sqrtWeights.length; i++) {
+        double[] row = jac[i];
+        for(int k = 0; k<row.length; k++) {
+          row[k] *= sqrtWeights[i];
+        }
+      }
+      return jac;
+    }
+
+  }
+
+  /**
+   * Linear weights copies of the rows of the design matrix and of the observations.
+   */
+  static class Linear extends WeightedLeastSquares implements LinearLeastSquaresFunction {
+    Linear(LeastSquaresFunction f, double[] weights) {
+      super(f, weights);
+    }
+
+    public double[][] getDesignMatrix() {
+      double[][] A = ((LinearLeastSquaresFunction) f).getDesignMatrix();
+      double[][] design = new double[A.length][];
+      for(int i = 0; i<sqrtWeights.length; i++) {
+        design[i] = A[i].clone();
+        for(int k = 0; k<design[i].length; k++) {
+          design[i][k] *= sqrtWeights[i];
+        }
+      }
+      return design;
+    }
+
+    public double[] getObservations() {
+      double[] y = ((LinearLeastSquaresFunction) f).getObservations().clone();
+      for(int i = 0; i<sqrtWeights.length; i++) {
+        y[i] *= sqrtWeights[i];
+      }
+      return y;
+    }
+
+  }
+
+}
+
+
+/*
+ * Open Source Physics software is free software; you can redistribute
+ * it and/or modify it under the terms of the GNU General Public License (GPL) as
+ * published by the Free Software Foundation; either version 2 of the License,
+ * or(at your option) any later version.
+
+ * Code that uses any portion of the code in the org.opensourcephysics package
+ * or any subpackage (subdirectory) of this package must must also be be released
+ * under the GNU GPL license.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston MA 02111-1307 USA
+ * or view the license online at http://www.gnu.org/copyleft/gpl.html
+ *
+ * Copyright (c) 2007  The Open Source Physics project
+ *                     http://www.opensourcephysics.org
+ */
@@ -16,6 +16,7 @@ import javax.swing.*;
 import javax.swing.event.*;
 import javax.swing.table.*;
 
+import org.opensourcephysics.controls.OSPLog;
 import org.opensourcephysics.display.*;
 import org.opensourcephysics.numerics.*;
 
@@ -45,6 +46,10 @@ public class DatasetCurveFitter extends JPanel {
   KnownFunction fit;             // the function to fit to the data
   HessianMinimize hessian = new HessianMinimize();
   LevenbergMarquardt levmar = new LevenbergMarquardt();
+  boolean weighted;              // true to weight the data by their y uncertainties
+  int loss = RobustLeastSquares.LOSS_SQUARED; // the loss of user function fits
+  boolean backgroundFitting = true; // true to autofit user functions on a worker thread
+  FitWorker fitWorker = new FitWorker();
   FunctionDrawer drawer;
   Color color = Color.MAGENTA;
   JButton colorButton, closeButton;
@@ -123,7 +128,7 @@ public class DatasetCurveFitter extends JPanel {
    */
   public void setData(Dataset data) {
     dataset = data;
-    fit(fit);
+    requestFit();
     if (dataset != null) {
 	  	String var = dataset.getXColumnName();
 	    var = TeXParser.removeSubscripting(var);
@@ -168,6 +173,7 @@ public class DatasetCurveFitter extends JPanel {
    * @return the rms deviation
    */
   public double fit(KnownFunction fit) {
+    fitWorker.cancel(); // this fit supersedes any background fit
     if(drawer==null) {
       selectFit((String) fitDropDown.getSelectedItem());
     }
@@ -193,7 +199,6 @@ public class DatasetCurveFitter extends JPanel {
     double[] y = dataset.getValidYPoints();
     double devSq = 0;
     // autofit if checkbox is selected
-    double[] prevParams = null;
     // get deviation before fitting
     double prevDevSq = getDevSquared(fit, x, y);
     if(autofitCheckBox.isSelected()) {
@@ -206,30 +211,9 @@ public class DatasetCurveFitter extends JPanel {
         double[] params = new double[f.getParameterCount()];
         // can't autofit if no parameters
         if(params.length>0) {
-          MinimizeUserFunction minFunc = new MinimizeUserFunction(f, x, y);
-          prevParams = new double[params.length];
-          for(int i = 0; i<params.length; i++) {
-            params[i] = prevParams[i] = f.getParameterValue(i);
-          }
-          double tol = 1.0E-6;
-          int iterations = 20;
-          hessian.minimize(minFunc, params, iterations, tol);
-          // get deviation after minimizing
-          devSq = getDevSquared(fit, x, y);
-          // restore parameters and try Levenberg-Marquardt if Hessian fit is worse
-          if(devSq>prevDevSq) {
-            for(int i = 0; i<prevParams.length; i++) {
-              f.setParameterValue(i, prevParams[i]);
-            }
-            levmar.minimize(minFunc, params, iterations, tol);
-            // get deviation after minimizing
-            devSq = getDevSquared(fit, x, y);
-          }
-          // restore parameters and deviation if new fit is worse
-          if(devSq>prevDevSq) {
-            for(int i = 0; i<prevParams.length; i++) {
-              f.setParameterValue(i, prevParams[i]);
-            }
+          MinimizeUserFunction minFunc = new MinimizeUserFunction(f, x, y, weighted ? getWeights() : null);
+          // restore deviation if new fit is worse
+          if(!autofit(minFunc, hessian, levmar, loss)) {
             devSq = prevDevSq;
             autofitCheckBox.setSelected(false);
             Toolkit.getDefaultToolkit().beep();
@@ -248,6 +232,95 @@ public class DatasetCurveFitter extends JPanel {
     return rmsDev;
   }
 
+  /**
+   * Fits the fit function to the current data like fit(fit), except that an autofit of a
+   * user function is run on a worker thread when background fitting is on.  The result is
+   * published on the event dispatch thread.  Requests made while a fit runs cancel it and
+   * only the latest one is fit, so rapid edits do not queue up.
+   */
+  protected void requestFit() {
+    if(backgroundFitting&&autofitCheckBox.isSelected()&&(fit instanceof UserFunction)&&(dataset!=null)
+       &&(drawer!=null)&&(fit.getParameterCount()>0)) {
+      // setData(null) may have disabled the controls that fit() enables
+      autofitCheckBox.setEnabled(true);
+      paramTable.setEnabled(true);
+      fitWorker.submit(new FitRequest((UserFunction) fit));
+    } else {
+      fit(fit);
+    }
+  }
+
+  /**
+   * Minimizes the deviation of a user function from the data, first by HessianMinimize and
+   * if that fails by LevenbergMarquardt, then refines the fit with a robust loss.  The
+   * parameters are restored if the deviation is not reduced.
+   *
+   * @return true if the fit reduced the deviation
+   */
+  private static boolean autofit(MinimizeUserFunction minFunc, HessianMinimize hessian, LevenbergMarquardt levmar,
+                                 int loss) {
+    UserFunction f = minFunc.f;
+    double[] params = new double[f.getParameterCount()];
+    double[] prevParams = new double[params.length];
+    for(int i = 0; i<params.length; i++) {
+      params[i] = prevParams[i] = f.getParameterValue(i);
+    }
+    double tol = 1.0E-6;
+    int iterations = 20;
+    // fits are compared by the (weighted) deviation that is minimized
+    double prevCost = minFunc.evaluate();
+    hessian.minimize(minFunc, params, iterations, tol);
+    double cost = minFunc.evaluate();
+    // restore parameters and try Levenberg-Marquardt if Hessian fit is worse
+    if(cost>prevCost) {
+      for(int i = 0; i<prevParams.length; i++) {
+        f.setParameterValue(i, prevParams[i]);
+      }
+      levmar.minimize((MultiVarFunction) minFunc, params, iterations, tol);
+      cost = minFunc.evaluate();
+    }
+    // restore parameters if new fit is worse
+    if(cost>prevCost) {
+      for(int i = 0; i<prevParams.length; i++) {
+        f.setParameterValue(i, prevParams[i]);
+      }
+      return false;
+    }
+    // refine with a robust loss that limits the influence of outliers
+    if(loss!=RobustLeastSquares.LOSS_SQUARED) {
+      for(int i = 0; i<params.length; i++) {
+        params[i] = f.getParameterValue(i);
+      }
+      new RobustLeastSquares(loss).minimize(levmar, minFunc, params, iterations, tol);
+      for(int i = 0; i<params.length; i++) {
+        f.setParameterValue(i, params[i]);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Sets whether autofits of user functions requested by the GUI run on a worker thread.
+   * Calls to fit always fit immediately.
+   *
+   * @param background true to fit in the background
+   */
+  public void setBackgroundFitting(boolean background) {
+    backgroundFitting = background;
+    if(!background) {
+      fitWorker.cancel();
+    }
+  }
+
+  /**
+   * Gets whether autofits of user functions requested by the GUI run on a worker thread.
+   *
+   * @return true if fitting in the background
+   */
+  public boolean isBackgroundFitting() {
+    return backgroundFitting;
+  }
+
   /**
    * Adds a fit function. UserFunctions can optionally be added to the fit builder.
    *
@@ -335,7 +408,7 @@ public class DatasetCurveFitter extends JPanel {
       public void actionPerformed(ActionEvent e) {
         spinCellEditor.stopCellEditing();
         paramTable.clearSelection();
-        fit(fit);
+        requestFit();
         firePropertyChange("changed", null, null); //$NON-NLS-1$
       }
 
@@ -669,7 +742,7 @@ public class DatasetCurveFitter extends JPanel {
       	eqnField.setText(depVar+" = "+fit.getExpression(indepVar)); //$NON-NLS-1$
       }
       firePropertyChange("drawer", prev, drawer);                 //$NON-NLS-1$
-      fit(fit);
+      requestFit();
       if(fit instanceof UserFunction && fitBuilder!=null && fitBuilder.isVisible()) {
         UserFunction f = (UserFunction) fit;
         fitBuilder.setSelectedPanel(f.getName());
@@ -823,13 +896,71 @@ public class DatasetCurveFitter extends JPanel {
     return uf;    	
   }
   
+  /**
+   * Gets the weights 1/dy^2 of the valid data points from their y uncertainties.
+   *
+   * @return the weights or null if some point has no positive uncertainty
+   */
+  private double[] getWeights() {
+    double[] dy = dataset.getValidYErrors();
+    if(dy==null) {
+      return null;
+    }
+    double[] weights = new double[dy.length];
+    for(int i = 0; i<dy.length; i++) {
+      if(!(dy[i]>0)) {
+        return null;
+      }
+      weights[i] = 1/(dy[i]*dy[i]);
+    }
+    return weights;
+  }
+
+  /**
+   * Sets whether user function fits weight the data by their y uncertainties.
+   * The data are only weighted if every point has a positive uncertainty.
+   *
+   * @param weighted true to weight the data
+   */
+  public void setWeighted(boolean weighted) {
+    this.weighted = weighted;
+  }
+
+  /**
+   * Gets whether user function fits weight the data by their y uncertainties.
+   *
+   * @return true if weighted
+   */
+  public boolean isWeighted() {
+    return weighted;
+  }
+
+  /**
+   * Sets the loss of user function fits.  Robust losses limit the influence of outliers.
+   *
+   * @param loss a RobustLeastSquares loss
+   */
+  public void setLoss(int loss) {
+    this.loss = loss;
+  }
+
+  /**
+   * Gets the loss of user function fits.
+   *
+   * @return the RobustLeastSquares loss
+   */
+  public int getLoss() {
+    return loss;
+  }
+
   /**
    * Gets the total deviation squared between function and data
    */
   private double getDevSquared(Function f, double[] x, double[] y) {
+    double[] values = f.evaluate(x, null);
     double total = 0;
     for(int i = 0; i<x.length; i++) {
-      double next = f.evaluate(x[i]);
+      double next = values[i];
       double dev = (next-y[i]);
       total += dev*dev;
     }
@@ -1068,7 +1199,7 @@ public class DatasetCurveFitter extends JPanel {
             }
           }
           drawer.functionChanged = true;
-          fit(fit);
+          requestFit();
           firePropertyChange("changed", null, null);                       //$NON-NLS-1$
         }
 
@@ -1239,16 +1370,33 @@ public class DatasetCurveFitter extends JPanel {
    * A function whose value is the total deviation squared
    * between a user function and a set of data points.
    * This function is minimized by the HessianMinimize class.
+   * The deviations may be weighted, and are also available as residuals
+   * for least-squares and robust fits.
    */
-  public class MinimizeUserFunction implements MultiVarFunction {
+  public class MinimizeUserFunction implements LeastSquaresFunction {
     UserFunction f;
+    UserFunction.Prepared prepared; // evaluates f without allocating
     double[] x, y; // the data
+    double[] sqrtWeights; // square roots of the weights, null if unweighted
+    double[] values; // the values of the user function at x
 
     // Constructor
     MinimizeUserFunction(UserFunction f, double[] x, double[] y) {
+      this(f, x, y, null);
+    }
+
+    // Constructor with weights
+    MinimizeUserFunction(UserFunction f, double[] x, double[] y, double[] weights) {
       this.f = f;
+      prepared = f.prepare();
       this.x = x;
       this.y = y;
+      if(weights!=null) {
+        sqrtWeights = new double[weights.length];
+        for(int i = 0; i<weights.length; i++) {
+          sqrtWeights[i] = Math.sqrt(weights[i]);
+        }
+      }
     }
 
     // Evaluates this function
@@ -1257,16 +1405,177 @@ public class DatasetCurveFitter extends JPanel {
       for(int i = 0; i<params.length; i++) {
         f.setParameterValue(i, params[i]);
       }
+      return evaluate();
+    }
+
+    // Evaluates this function at the current parameter values of the user function
+    double evaluate() {
+      prepared.bind();
+      values = prepared.evaluate(x, values);
       double sum = 0.0;
       for(int i = 0; i<x.length; i++) {
-        // evaluate the user function and find deviation
-        double dev = y[i]-f.evaluate(x[i]);
+        // find the deviation of the user function
+        double dev = y[i]-values[i];
+        if(sqrtWeights!=null) {
+          dev *= sqrtWeights[i];
+        }
         // sum the squares of the deviations
         sum += dev*dev;
       }
       return sum;
     }
 
+    // Gets the number of data points
+    public int getResidualCount() {
+      return x.length;
+    }
+
+    // Evaluates the weighted deviations
+    public double[] evaluate(double[] params, double[] r) {
+      if(r==null) {
+        r = new double[x.length];
+      }
+      for(int i = 0; i<params.length; i++) {
+        f.setParameterValue(i, params[i]);
+      }
+      prepared.bind();
+      prepared.evaluate(x, r);
+      for(int i = 0; i<x.length; i++) {
+        r[i] = y[i]-r[i];
+        if(sqrtWeights!=null) {
+          r[i] *= sqrtWeights[i];
+        }
+      }
+      return r;
+    }
+
+  }
+
+  /**
+   * An autofit of a copy of a user function, so that the function drawn and edited on the
+   * event dispatch thread is not changed while the fit runs.
+   */
+  class FitRequest implements Runnable {
+    UserFunction target;          // the function to receive the fitted parameters
+    MinimizeUserFunction minFunc; // minimizes a clone of the target
+    HessianMinimize hessian = new HessianMinimize();
+    LevenbergMarquardt levmar = new LevenbergMarquardt();
+    int loss;
+    boolean improved;
+    volatile boolean cancelled;
+
+    // Constructor, called on the event dispatch thread
+    FitRequest(UserFunction target) {
+      this.target = target;
+      double[] x = dataset.getValidXPoints();
+      double[] y = dataset.getValidYPoints();
+      minFunc = new MinimizeUserFunction(target.clone(), x, y, weighted ? getWeights() : null);
+      loss = DatasetCurveFitter.this.loss;
+    }
+
+    // Fits on the worker thread, then publishes the result on the event dispatch thread
+    public void run() {
+      improved = autofit(minFunc, hessian, levmar, loss);
+      if(!cancelled) {
+        SwingUtilities.invokeLater(new Runnable() {
+          public void run() {
+            publish();
+          }
+
+        });
+      }
+    }
+
+    // Cancels this request; its minimizers stop at their next iteration or when they start
+    void cancel() {
+      cancelled = true;
+      hessian.cancel();
+      levmar.cancel();
+    }
+
+    // Copies the fitted parameters to the target unless the request is stale
+    void publish() {
+      if(cancelled||(fit!=target)) {
+        return;
+      }
+      if(improved) {
+        for(int i = 0; i<target.getParameterCount(); i++) {
+          target.setParameterValue(i, minFunc.f.getParameterValue(i));
+        }
+      } else {
+        autofitCheckBox.setSelected(false);
+        Toolkit.getDefaultToolkit().beep();
+      }
+      drawer.functionChanged = true;
+      paramTable.repaint();
+      rmsField.setValue(Math.sqrt(getDevSquared(target, minFunc.x, minFunc.y)/minFunc.x.length));
+      firePropertyChange("fit", null, null); //$NON-NLS-1$
+    }
+
+  }
+
+  /**
+   * Runs fit requests one at a time on a daemon thread that exits when none is pending.
+   * Only the latest request is kept and submitting one cancels the running fit, whose
+   * minimizers stop at their next iteration.
+   */
+  class FitWorker implements Runnable {
+    FitRequest pending;
+    volatile FitRequest running;
+    Thread thread;
+
+    // Replaces any pending request and cancels the running one
+    synchronized void submit(FitRequest request) {
+      cancel();
+      pending = request;
+      if(thread==null) {
+        thread = new Thread(this, "DatasetCurveFitter"); //$NON-NLS-1$
+        thread.setDaemon(true);
+        thread.start();
+      }
+    }
+
+    // Cancels the pending and running requests
+    synchronized void cancel() {
+      if(pending!=null) {
+        pending.cancel();
+        pending = null;
+      }
+      FitRequest request = running;
+      if(request!=null) {
+        request.cancel();
+      }
+    }
+
+    public void run() {
+      try {
+        while(true) {
+          FitRequest request;
+          synchronized(this) {
+            if(pending==null) {
+              running = null;
+              thread = null;
+              return;
+            }
+            request = running = pending;
+            pending = null;
+          }
+          try {
+            request.run();
+          } catch(RuntimeException ex) { // a failed fit must not stop later requests
+            OSPLog.warning("background fit failed: "+ex); //$NON-NLS-1$
+          }
+        }
+      } finally {
+        synchronized(this) {
+          if(thread==Thread.currentThread()) { // died with an error, so let submit start a new thread
+            running = null;
+            thread = null;
+          }
+        }
+      }
+    }
+
   }
 
   /**
@@ -9,6 +9,7 @@ package org.opensourcephysics.tools;
 import org.opensourcephysics.controls.XML;
 import org.opensourcephysics.controls.XMLControl;
 import org.opensourcephysics.controls.XMLLoader;
+import org.opensourcephysics.numerics.Function;
 import org.opensourcephysics.numerics.MultiVarFunction;
 import org.opensourcephysics.numerics.ParsedMultiVarFunction;
 import org.opensourcephysics.numerics.ParserException;
@@ -34,6 +35,7 @@ public class UserFunction implements KnownFunction, MultiVarFunction, Cloneable
   protected boolean nameEditable = true;
   protected String description;
   protected String[] functionNames;
+  private Prepared batch; // reused by evaluate(double[], double[])
 
   /**
    * Constructor.
@@ -376,6 +378,137 @@ public class UserFunction implements KnownFunction, MultiVarFunction, Cloneable
     return function.evaluate(values);
   }
 
+  /**
+   * Evaluates the function for every element of an array of single variables x.  A
+   * prepared evaluator is kept between calls and rebound to the current parameters, so
+   * this method is not safe for concurrent use; threads should hold their own Prepared.
+   *
+   * @param x
+   * @param result the array for the values or null
+   * @return f(x[i])
+   */
+  public double[] evaluate(double[] x, double[] result) {
+    if((batch==null)||!batch.isCurrent()) {
+      batch = prepare();
+    } else {
+      batch.bind();
+    }
+    return batch.evaluate(x, result);
+  }
+
+  /**
+   * Gets a prepared evaluator of this function for a single variable x.  The evaluator
+   * holds the values array passed to the parsed function with the parameters already in
+   * place, so evaluating it allocates nothing.  Call bind after changing parameters.
+   *
+   * @return the prepared evaluator
+   */
+  public Prepared prepare() {
+    return new Prepared();
+  }
+
+  /**
+   * A prepared evaluator of a UserFunction for a single variable x.  The values array has
+   * the slots x, the parameters and the support function values, as in evaluate(x).
+   */
+  public class Prepared implements Function {
+    ParsedMultiVarFunction parsed = function;
+    double[] values = new double[1+paramValues.length+references.length];
+    Prepared[] support = new Prepared[references.length];
+    double[][] supportValues = new double[references.length][]; // reused by evaluate(double[], double[])
+
+    // Constructor
+    Prepared() {
+      for(int i = 0; i<support.length; i++) {
+        support[i] = references[i].prepare();
+      }
+      bind();
+    }
+
+    /**
+     * Copies the current parameter values of the function and its support functions into
+     * the parameter slots.
+     */
+    public void bind() {
+      System.arraycopy(paramValues, 0, values, 1, paramValues.length);
+      for(int i = 0; i<support.length; i++) {
+        support[i].bind();
+      }
+    }
+
+    /**
+     * Returns true if the expression, parameter count and support functions of the
+     * function are the ones this evaluator was prepared for.
+     */
+    boolean isCurrent() {
+      if((parsed!=function)||(values.length!=1+paramValues.length+references.length)) {
+        return false;
+      }
+      for(int i = 0; i<support.length; i++) {
+        if((support[i].owner()!=references[i])||!support[i].isCurrent()) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    UserFunction owner() {
+      return UserFunction.this;
+    }
+
+    /**
+     * Evaluates the function for a single variable x with the bound parameters.
+     *
+     * @param x
+     * @return f(x)
+     */
+    public double evaluate(double x) {
+      if(parsed==null) {
+        return Double.NaN;
+      }
+      int offset = values.length-support.length;
+      for(int i = 0; i<support.length; i++) {
+        values[offset+i] = support[i].evaluate(x);
+      }
+      values[0] = x;
+      return parsed.evaluate(values);
+    }
+
+    /**
+     * Evaluates the function for every element of x with the bound parameters.  The
+     * support functions are evaluated for the whole array first.
+     *
+     * @param x
+     * @param result the array for the values or null
+     * @return f(x[i])
+     */
+    public double[] evaluate(double[] x, double[] result) {
+      if(result==null) {
+        result = new double[x.length];
+      }
+      for(int i = 0; i<support.length; i++) {
+        if((supportValues[i]==null)||(supportValues[i].length<x.length)) {
+          supportValues[i] = new double[x.length];
+        }
+        support[i].evaluate(x, supportValues[i]);
+      }
+      int offset = values.length-support.length;
+      for(int j = 0; j<x.length; j++) {
+        if(parsed==null) {
+          result[j] = Double.NaN;
+          continue;
+        }
+        for(int i = 0; i<support.length; i++) {
+          values[offset+i] = supportValues[i][j];
+        }
+        values[0] = x[j];
+        result[j] = parsed.evaluate(values);
+      }
+      return result;
+    }
+
+  }
+
   /**
    * Returns a clone of this UuserFunction.
    *
@@ -385,10 +518,14 @@ public class UserFunction implements KnownFunction, MultiVarFunction, Cloneable
     UserFunction f = new UserFunction(name);
     f.setDescription(description);
     f.setNameEditable(nameEditable);
-    f.setParameters(paramNames, paramValues);
+    // copy the parameters so that changing the clone does not change this function
+    f.setParameters(paramNames.clone(), paramValues.clone());
     UserFunction[] refs = new UserFunction[references.length];
     for(int i = 0; i<refs.length; i++) {
       refs[i] = references[i].clone();
+      if(references[i].paramValues==paramValues) { // shared by updateReferenceParameters
+        refs[i].setParameters(f.paramNames, f.paramValues);
+      }
     }
     f.setReferences(refs);
     f.setExpression(inputString, vars);